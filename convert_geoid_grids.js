@@ -0,0 +1,260 @@
+const path = require("path");
+const fs = require("fs");
+
+/**
+ * Layout of the binary grid files
+ * (all values little-endian), read by
+ * GridIndex.fromBinary:
+ *
+ * magic "FCGEOID1"
+ * int32 nx, int32 ny
+ * float64 x0, y0, dx, dy
+ * float64 heightOffset, heightScale
+ * int16 heights[ny][nx]
+ *
+ * Both axes are increasing, a height
+ * is heightOffset + heightScale * value.
+ */
+const MAGIC = "FCGEOID1";
+const HEADER_LENGTH = 64;
+/**
+ * Layout of the tiled grid files, read by
+ * TiledGrid, for models too large for memory:
+ *
+ * magic "FCGTILE1"
+ * int32 nx, ny, tileSize, tilesX, tilesY, reserved
+ * float64 x0, y0, dx, dy
+ * float64 heightOffset, heightScale
+ * int64 tileOffsets[tilesY][tilesX]
+ * tiles
+ *
+ * Tile (ti, tj) holds the cells ti * tileSize
+ * to (ti + 1) * tileSize - 1 along x (tj along y),
+ * as (tileSize + 1)^2 int16 heights of their nodes,
+ * so neighbouring tiles share one row or column.
+ * Nodes past the end of the grid repeat the last one.
+ * NO_DATA marks missing heights, tiles without
+ * any heights are left out (offset 0).
+ */
+const TILED_MAGIC = "FCGTILE1";
+const TILED_HEADER_LENGTH = 80;
+const DEFAULT_TILE_SIZE = 256;
+const NO_DATA = -32768;
+/**
+ * Heights are quantized to this
+ * step at most (0.1 mm)
+ */
+const MIN_HEIGHT_SCALE = 0.0001;
+const TOLERANCE = 1e-6;
+
+function readMatrix(filePath) {
+  return fs
+    .readFileSync(filePath)
+    .toString()
+    .split("\n")
+    .map((line) => line.trim())
+    .filter((line) => line.length > 0)
+    .map((line) => line.split(/\s+/).map(Number));
+}
+
+function regularAxis(values, name) {
+  const spacing = (values[values.length - 1] - values[0]) / (values.length - 1);
+  values.forEach((value, i) => {
+    if (Math.abs(values[0] + i * spacing - value) > TOLERANCE * Math.abs(spacing)) {
+      throw new Error(`${name} axis is not regularly spaced`);
+    }
+  });
+  return spacing;
+}
+
+/**
+ * Reads the three text matrices of a model
+ * folder into one regular grid with
+ * increasing axes
+ */
+function readGrid(folder) {
+  const gridX = readMatrix(path.join(folder, "grid_x.txt"));
+  const gridY = readMatrix(path.join(folder, "grid_y.txt"));
+  const gridH = readMatrix(path.join(folder, "grid_h.txt"));
+  const rows = gridX.length;
+  const cols = gridX[0].length;
+
+  // x either changes along the columns or along the rows
+  const xAlongColumns =
+    Math.abs(gridX[0][1] - gridX[0][0]) > Math.abs(gridX[1][0] - gridX[0][0]);
+  const nx = xAlongColumns ? cols : rows;
+  const ny = xAlongColumns ? rows : cols;
+  const xs = [...Array(nx)].map((_, i) => (xAlongColumns ? gridX[0][i] : gridX[i][0]));
+  const ys = [...Array(ny)].map((_, j) => (xAlongColumns ? gridY[j][0] : gridY[0][j]));
+  const dx = regularAxis(xs, "x");
+  const dy = regularAxis(ys, "y");
+
+  for (let row = 0; row < rows; row += 1) {
+    for (let col = 0; col < cols; col += 1) {
+      const x = xs[xAlongColumns ? col : row];
+      const y = ys[xAlongColumns ? row : col];
+      if (
+        Math.abs(gridX[row][col] - x) > TOLERANCE * Math.abs(dx) ||
+        Math.abs(gridY[row][col] - y) > TOLERANCE * Math.abs(dy)
+      ) {
+        throw new Error(`Grid is not rectilinear at row ${row}, column ${col}`);
+      }
+    }
+  }
+
+  // Store both axes in increasing order
+  const flipX = dx < 0;
+  const flipY = dy < 0;
+  const heights = new Float64Array(nx * ny);
+  for (let j = 0; j < ny; j += 1) {
+    const sourceJ = flipY ? ny - 1 - j : j;
+    for (let i = 0; i < nx; i += 1) {
+      const sourceI = flipX ? nx - 1 - i : i;
+      heights[j * nx + i] = xAlongColumns ? gridH[sourceJ][sourceI] : gridH[sourceI][sourceJ];
+    }
+  }
+
+  return {
+    nx,
+    ny,
+    x0: flipX ? xs[nx - 1] : xs[0],
+    y0: flipY ? ys[ny - 1] : ys[0],
+    dx: Math.abs(dx),
+    dy: Math.abs(dy),
+    heights,
+  };
+}
+
+function quantization(heights) {
+  let min = Infinity;
+  let max = -Infinity;
+  heights.forEach((h) => {
+    if (!Number.isNaN(h)) {
+      min = Math.min(min, h);
+      max = Math.max(max, h);
+    }
+  });
+  return {
+    heightOffset: (min + max) / 2,
+    // Leaves out NO_DATA
+    heightScale: Math.max((max - min) / 65534, MIN_HEIGHT_SCALE),
+  };
+}
+
+/**
+ * Converts the three text matrices of
+ * a model folder to one grid.bin file
+ */
+function convert(folder) {
+  const { nx, ny, x0, y0, dx, dy, heights } = readGrid(folder);
+  const { heightOffset, heightScale } = quantization(heights);
+
+  const buffer = Buffer.alloc(HEADER_LENGTH + heights.length * 2);
+  buffer.write(MAGIC, 0, "ascii");
+  buffer.writeInt32LE(nx, 8);
+  buffer.writeInt32LE(ny, 12);
+  buffer.writeDoubleLE(x0, 16);
+  buffer.writeDoubleLE(y0, 24);
+  buffer.writeDoubleLE(dx, 32);
+  buffer.writeDoubleLE(dy, 40);
+  buffer.writeDoubleLE(heightOffset, 48);
+  buffer.writeDoubleLE(heightScale, 56);
+  let maxError = 0;
+  heights.forEach((h, k) => {
+    const value = Math.round((h - heightOffset) / heightScale);
+    buffer.writeInt16LE(value, HEADER_LENGTH + k * 2);
+    maxError = Math.max(maxError, Math.abs(heightOffset + value * heightScale - h));
+  });
+
+  const outPath = path.join(folder, "grid.bin");
+  fs.writeFileSync(outPath, buffer);
+  console.log(
+    `${outPath}: ${nx}x${ny}, ${buffer.length} bytes, max quantization error ${maxError.toExponential(2)} m`
+  );
+}
+
+/**
+ * Converts the text matrices of a model
+ * folder to one grid.tiles file
+ */
+function convertTiled(folder, tileSize) {
+  const { nx, ny, x0, y0, dx, dy, heights } = readGrid(folder);
+  const { heightOffset, heightScale } = quantization(heights);
+  const tilesX = Math.ceil((nx - 1) / tileSize);
+  const tilesY = Math.ceil((ny - 1) / tileSize);
+  const tileNodes = tileSize + 1;
+  const tileLength = tileNodes * tileNodes * 2;
+
+  const header = Buffer.alloc(TILED_HEADER_LENGTH + tilesX * tilesY * 8);
+  header.write(TILED_MAGIC, 0, "ascii");
+  [nx, ny, tileSize, tilesX, tilesY, 0].forEach((value, i) =>
+    header.writeInt32LE(value, 8 + i * 4)
+  );
+  [x0, y0, dx, dy, heightOffset, heightScale].forEach((value, i) =>
+    header.writeDoubleLE(value, 32 + i * 8)
+  );
+
+  const outPath = path.join(folder, "grid.tiles");
+  const file = fs.openSync(outPath, "w");
+  let offset = header.length;
+  let written = 0;
+  for (let tj = 0; tj < tilesY; tj += 1) {
+    for (let ti = 0; ti < tilesX; ti += 1) {
+      const tile = Buffer.alloc(tileLength);
+      let hasData = false;
+      for (let b = 0; b < tileNodes; b += 1) {
+        const j = Math.min(tj * tileSize + b, ny - 1);
+        for (let a = 0; a < tileNodes; a += 1) {
+          const i = Math.min(ti * tileSize + a, nx - 1);
+          const h = heights[j * nx + i];
+          const value = Number.isNaN(h) ? NO_DATA : Math.round((h - heightOffset) / heightScale);
+          hasData = hasData || value !== NO_DATA;
+          tile.writeInt16LE(value, (b * tileNodes + a) * 2);
+        }
+      }
+      if (hasData) {
+        header.writeBigInt64LE(BigInt(offset), TILED_HEADER_LENGTH + (tj * tilesX + ti) * 8);
+        fs.writeSync(file, tile, 0, tile.length, offset);
+        offset += tile.length;
+        written += 1;
+      }
+    }
+  }
+  fs.writeSync(file, header, 0, header.length, 0);
+  fs.closeSync(file);
+  console.log(
+    `${outPath}: ${nx}x${ny}, ${written} of ${tilesX * tilesY} tiles of ${tileSize}x${tileSize} cells, ${offset} bytes`
+  );
+}
+
+/**
+ * Converts the text grids of all geoid
+ * models in the assets folder to the
+ * binary format. Run after changing
+ * a grid.
+ *
+ * With --tiled [--tile-size n] <folder...>, writes
+ * tiled grids of the given model folders instead,
+ * for models too large to keep in memory.
+ */
+function main() {
+  const args = process.argv.slice(2);
+  if (args[0] === "--tiled") {
+    let tileSize = DEFAULT_TILE_SIZE;
+    let folders = args.slice(1);
+    if (folders[0] === "--tile-size") {
+      tileSize = Number(folders[1]);
+      folders = folders.slice(2);
+    }
+    folders.forEach((folder) => convertTiled(folder, tileSize));
+    return;
+  }
+
+  const assetsPath = path.join(__dirname, "src/android/assets");
+  fs.readdirSync(assetsPath)
+    .map((model) => path.join(assetsPath, model))
+    .filter((folder) => fs.existsSync(path.join(folder, "grid_h.txt")))
+    .forEach(convert);
+}
+
+main();
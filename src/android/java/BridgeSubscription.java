@@ -0,0 +1,259 @@
+package com.cordovapluginfastcam;
+
+import android.os.SystemClock;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends fixes to a JS callback at
+ * most maxRate times per second.
+ * Fixes arriving in between are
+ * coalesced: either the latest one
+ * of every receiver is sent, or all
+ * fixes of the primary receiver as
+ * one batch. Only the fields the
+ * JS side asked for are serialized.
+ *
+ * With the binary encoding, fixes are
+ * sent as an ArrayBuffer instead of JSON:
+ * one record per fix, holding the
+ * requested fields in the requested order
+ * as little-endian float64 values.
+ */
+public class BridgeSubscription {
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "BridgeSubscription");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final CallbackContext callbackContext;
+    private final long minIntervalNanos;
+    private final String[] fields;
+    private final boolean batch;
+    private final boolean binary;
+    private final PositionHistory history;
+    private final LatencyTracer latencyTracer;
+
+    /**
+     * Latest unsent fix per receiver, in batch
+     * mode only the primary one's is kept
+     */
+    private final GPSPosition[] pending = new GPSPosition[GpsDataDispatcher.MAX_SOURCES];
+    private final boolean[] hasPendingSource = new boolean[GpsDataDispatcher.MAX_SOURCES];
+    private final GPSPosition[] sending = new GPSPosition[GpsDataDispatcher.MAX_SOURCES];
+    private final GPSPosition scratch = new GPSPosition();
+    private boolean hasPending = false;
+    private ScheduledFuture<?> scheduledFlush = null;
+    private boolean closed = false;
+    private long lastSentNanos = 0;
+    /**
+     * History entry of the next fix to
+     * send in batch mode
+     */
+    private long nextHistoryEntry = -1;
+
+    /**
+     * @param options JSON object with the optional keys
+     *                maxRate (deliveries per second, 0 = every fix),
+     *                fields (array of field names, default all),
+     *                batch (send all fixes since the last delivery)
+     *                and encoding ("json" or "binary")
+     */
+    public BridgeSubscription(CallbackContext callbackContext, JSONObject options, PositionHistory history, LatencyTracer latencyTracer) {
+        this.callbackContext = callbackContext;
+        this.history = history;
+        this.latencyTracer = latencyTracer;
+
+        double maxRate = 0;
+        String[] fields = GPSPosition.FIELDS;
+        boolean batch = false;
+        boolean binary = false;
+        if (options != null) {
+            maxRate = options.optDouble("maxRate", 0);
+            batch = options.optBoolean("batch", false);
+            binary = "binary".equals(options.optString("encoding", "json"));
+            JSONArray fieldsJson = options.optJSONArray("fields");
+            if (fieldsJson != null && fieldsJson.length() > 0) {
+                fields = new String[fieldsJson.length()];
+                for (int i = 0; i < fields.length; i += 1) {
+                    fields[i] = fieldsJson.optString(i, "");
+                }
+            }
+        }
+        this.minIntervalNanos = maxRate > 0 ? (long) (1e9 / maxRate) : 0;
+        this.fields = fields;
+        this.batch = batch && history != null;
+        this.binary = binary;
+        for (int i = 0; i < this.pending.length; i += 1) {
+            this.pending[i] = new GPSPosition();
+        }
+    }
+
+    /**
+     * Called for every fix, returns
+     * right away
+     */
+    public synchronized void onData(GPSPosition pos) {
+        if (this.closed || pos.source < 0 || pos.source >= this.pending.length) {
+            return;
+        }
+        if (this.batch) {
+            // Batches are read from the primary
+            // receiver's history only
+            if (pos.source != 0) {
+                return;
+            }
+            if (this.nextHistoryEntry < 0) {
+                this.nextHistoryEntry = this.history.getCount() - 1;
+            }
+        }
+        // Also kept in batch mode, for its latency stamps
+        this.pending[pos.source].copyFrom(pos);
+        this.hasPendingSource[pos.source] = true;
+        this.hasPending = true;
+
+        long now = System.nanoTime();
+        long wait = this.lastSentNanos + this.minIntervalNanos - now;
+        if (wait <= 0) {
+            this.flush(now);
+        } else if (this.scheduledFlush == null) {
+            this.scheduledFlush = scheduler.schedule(this::onScheduledFlush, wait, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized void onScheduledFlush() {
+        this.scheduledFlush = null;
+        if (this.closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        long wait = this.lastSentNanos + this.minIntervalNanos - now;
+        if (wait > 0 && this.hasPending) {
+            this.scheduledFlush = scheduler.schedule(this::onScheduledFlush, wait, TimeUnit.NANOSECONDS);
+            return;
+        }
+        this.flush(now);
+    }
+
+    /**
+     * Stops sending, e.g. when the subscription
+     * is replaced by a new initGps. A flush
+     * already scheduled is cancelled.
+     */
+    public synchronized void close() {
+        this.closed = true;
+        this.hasPending = false;
+        Arrays.fill(this.hasPendingSource, false);
+        if (this.scheduledFlush != null) {
+            this.scheduledFlush.cancel(false);
+            this.scheduledFlush = null;
+        }
+    }
+
+    /**
+     * First history entry to send in batch mode.
+     * Older entries are overwritten, so a batch
+     * never holds more than the history's capacity.
+     */
+    private long getBatchStart(long end) {
+        return Math.max(Math.max(this.nextHistoryEntry, 0), end - this.history.getCapacity());
+    }
+
+    private void flush(long now) {
+        if (!this.hasPending) {
+            return;
+        }
+        this.hasPending = false;
+        this.lastSentNanos = now;
+
+        if (this.batch) {
+            PluginResult pluginResult;
+            if (this.binary) {
+                pluginResult = new PluginResult(PluginResult.Status.OK, this.encodeBatch());
+            } else {
+                JSONArray positions = new JSONArray();
+                long end = this.history.getCount();
+                for (long n = this.getBatchStart(end); n < end; n += 1) {
+                    if (this.history.get(n, this.scratch)) {
+                        positions.put(this.scratch.toJson(this.fields));
+                    }
+                }
+                this.nextHistoryEntry = end;
+                pluginResult = new PluginResult(PluginResult.Status.OK, positions);
+            }
+            this.hasPendingSource[0] = false;
+            this.send(pluginResult, this.pending[0]);
+            return;
+        }
+
+        // One delivery per receiver, in the
+        // order their fixes arrived
+        int count = 0;
+        for (int i = 0; i < this.pending.length; i += 1) {
+            if (this.hasPendingSource[i]) {
+                this.hasPendingSource[i] = false;
+                this.sending[count] = this.pending[i];
+                count += 1;
+            }
+        }
+        GpsDataDispatcher.sortByArrival(this.sending, count);
+        for (int i = 0; i < count; i += 1) {
+            GPSPosition position = this.sending[i];
+            PluginResult pluginResult;
+            if (this.binary) {
+                ByteBuffer buffer = ByteBuffer.allocate(this.fields.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+                this.putRecord(buffer, position);
+                pluginResult = new PluginResult(PluginResult.Status.OK, buffer.array());
+            } else {
+                pluginResult = new PluginResult(PluginResult.Status.OK, position.toJson(this.fields));
+            }
+            this.send(pluginResult, position);
+        }
+    }
+
+    private void send(PluginResult pluginResult, GPSPosition position) {
+        pluginResult.setKeepCallback(true); // keep callback
+        this.callbackContext.sendPluginResult(pluginResult);
+        if (this.latencyTracer != null) {
+            this.latencyTracer.recordBridgeSend(position, SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    private byte[] encodeBatch() {
+        int recordSize = this.fields.length * 8;
+        long end = this.history.getCount();
+        long start = this.getBatchStart(end);
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start) * recordSize).order(ByteOrder.LITTLE_ENDIAN);
+        for (long n = start; n < end; n += 1) {
+            if (this.history.get(n, this.scratch)) {
+                this.putRecord(buffer, this.scratch);
+            }
+        }
+        this.nextHistoryEntry = end;
+        if (buffer.position() == buffer.capacity()) {
+            return buffer.array();
+        }
+        // Some fixes were already overwritten
+        byte[] records = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, records, 0, records.length);
+        return records;
+    }
+
+    private void putRecord(ByteBuffer buffer, GPSPosition position) {
+        for (String field : this.fields) {
+            buffer.putDouble(position.getValue(field));
+        }
+    }
+}
@@ -11,6 +11,7 @@ import android.graphics.Color;
 import android.media.MediaMetadataRetriever;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.view.Window;
@@ -44,7 +45,13 @@ public class CameraActivity extends Activity implements GpsDataCallback {
      */
     private static final long DELETE_PHOTOS_AFTER_DAYS = 10;
     private String dataFolderPath;
-    private long startEventTimestamp = 0;
+    private double startEventTimestamp = 0;
+    /**
+     * SystemClock.elapsedRealtimeNanos at the
+     * moment of startEventTimestamp, used to look
+     * up the position at capture time
+     */
+    private long startEventNanos = 0;
     private boolean isCapturing = false;
     private CameraMode mode = CameraMode.SINGLE_PHOTO;
     private ArrayList<ResultingFile> resultingFiles = new ArrayList<>();
@@ -58,6 +65,13 @@ public class CameraActivity extends Activity implements GpsDataCallback {
      * stored.
      */
     private JSONObject currentPosition;
+    /**
+     * Receives a consistent copy of
+     * the latest fix, which can't be
+     * changed by the GPS thread while
+     * it's being serialized
+     */
+    private GPSPosition positionSnapshot = new GPSPosition();
     /**
      * Before taking photos or videos,
      * this timestamp can be set from
@@ -70,7 +84,17 @@ public class CameraActivity extends Activity implements GpsDataCallback {
      * This can be used to sync with
      * external devices like GPS.
      */
-    private long syncedClockOffsetMs = 0;
+    private double clockSyncTimestamp = 0;
+    /**
+     * SystemClock.elapsedRealtimeNanos at
+     * the moment of clockSyncTimestamp
+     */
+    private long clockSyncNanos = 0;
+    /**
+     * Disciplined by the GPS receiver's
+     * UTC time if there is one
+     */
+    private ClockDiscipline clock;
     private ScheduledThreadPoolExecutor pictureTakingLoop = null;
 
     @Override
@@ -83,12 +107,16 @@ public class CameraActivity extends Activity implements GpsDataCallback {
 
         Log.d(TAG, "Files dir: " + this.dataFolderPath);
 
+        GpsCommunication gps = GpsCommunication.getInstance();
+        this.clock = gps != null ? gps.getClockDiscipline() : new ClockDiscipline();
+
         this.configureFromIntentData();
         this.setupDataFolder();
         this.checkPermissions();
         this.setupCamera();
-        GpsCommunication gps = GpsCommunication.getInstance();
-        gps.addEventListener(this);
+        if (gps != null) {
+            gps.addEventListener(this, true);
+        }
     }
 
     @Override
@@ -106,6 +134,10 @@ public class CameraActivity extends Activity implements GpsDataCallback {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        GpsCommunication gps = GpsCommunication.getInstance();
+        if (gps != null) {
+            gps.removeEventListener(this);
+        }
         this.getCamera().destroy();
     }
 
@@ -120,19 +152,30 @@ public class CameraActivity extends Activity implements GpsDataCallback {
     }
 
     /**
-     * Returns the current
-     * time in milliseconds.
+     * Returns the time in milliseconds
+     * at the given elapsedRealtimeNanos.
      * If the time was synced
      * from the outside, that
-     * time offset will be used.
-     * Otherwise, the device's
-     * internal local time.
+     * time frame will be used.
+     * Otherwise UTC from the GPS receiver,
+     * or the device's time if there is no
+     * receiver (yet).
      */
-    private long getCurrentTimeMs() {
-        if (this.syncedClockOffsetMs == 0) {
-            return System.currentTimeMillis();
+    private double getTimeMs(long elapsedNanos) {
+        if (this.clockSyncNanos == 0) {
+            return this.clock.toEpochMillis(elapsedNanos);
         }
-        return System.currentTimeMillis() + this.syncedClockOffsetMs;
+        double elapsedMs = (elapsedNanos - this.clockSyncNanos) / 1e6;
+        return this.clockSyncTimestamp + elapsedMs * (1 + this.clock.getDriftPpm() / 1e6);
+    }
+
+    /**
+     * Returns the current
+     * time in milliseconds,
+     * see getTimeMs
+     */
+    private long getCurrentTimeMs() {
+        return (long) this.getTimeMs(SystemClock.elapsedRealtimeNanos());
     }
 
     private int getViewId(String name, String defType) {
@@ -184,13 +227,15 @@ public class CameraActivity extends Activity implements GpsDataCallback {
         camera.addCameraListener(new CameraListener() {
             @Override
             public void onPictureTaken(PictureResult result) {
-                long endEventTimestamp = getCurrentTimeMs();
-                long pictureProcessingDuration = (endEventTimestamp - startEventTimestamp);
+                double endEventTimestamp = getTimeMs(SystemClock.elapsedRealtimeNanos());
+                double pictureProcessingDuration = (endEventTimestamp - startEventTimestamp);
                 Log.d(TAG, "Picture processing duration: " + pictureProcessingDuration);
 
                 String filePath = getLocalFilePath("img_" + getCurrentTimeMs() + ".jpeg");
+                double timestamp = startEventTimestamp;
+                JSONObject position = getPositionAt(startEventNanos);
                 result.toFile(new File(filePath), file -> {
-                    resultingFiles.add(new ResultingFile(filePath, ResultingFile.ResultingFileTypes.IMAGE, startEventTimestamp, currentPosition));
+                    resultingFiles.add(new ResultingFile(filePath, ResultingFile.ResultingFileTypes.IMAGE, timestamp, position));
                     if (mode == CameraMode.SINGLE_PHOTO) {
                         finishWithResult();
                     }
@@ -199,8 +244,8 @@ public class CameraActivity extends Activity implements GpsDataCallback {
 
             @Override
             public void onVideoTaken(VideoResult result) {
-                long endEventTimestamp = getCurrentTimeMs();
-                long cameraViewExpectedDuration = (endEventTimestamp - startEventTimestamp);
+                double endEventTimestamp = getTimeMs(SystemClock.elapsedRealtimeNanos());
+                double cameraViewExpectedDuration = (endEventTimestamp - startEventTimestamp);
 
                 File file = result.getFile();
 
@@ -212,13 +257,14 @@ public class CameraActivity extends Activity implements GpsDataCallback {
                 double durationDiff = Math.abs(cameraViewExpectedDuration - actualDuration);
                 videoDurationDeviationAnalyis.addValue(durationDiff);
                 Log.d(TAG, "Measured duration difference (= deviation of the the end time): " + durationDiff);
-                resultingFiles.add(new ResultingFile(file.getAbsolutePath(), ResultingFile.ResultingFileTypes.VIDEO, startEventTimestamp, currentPosition));
+                resultingFiles.add(new ResultingFile(file.getAbsolutePath(), ResultingFile.ResultingFileTypes.VIDEO, startEventTimestamp, getPositionAt(startEventNanos)));
                 finishWithResult();
             }
 
             @Override
             public void onVideoRecordingStart() {
-                startEventTimestamp = getCurrentTimeMs();
+                startEventNanos = SystemClock.elapsedRealtimeNanos();
+                startEventTimestamp = getTimeMs(startEventNanos);
                 Log.d(TAG, "onVideoRecordingStart");
             }
         });
@@ -251,15 +297,28 @@ public class CameraActivity extends Activity implements GpsDataCallback {
     private void updateCurrentPosition() {
         GpsCommunication gps = GpsCommunication.getInstance();
         if (gps != null) {
-            GPSPosition pos = gps.getCurrentPosition();
-            if (pos != null) {
-                this.currentPosition = pos.toJson();
+            if (gps.copyCurrentPosition(this.positionSnapshot)) {
+                this.currentPosition = this.positionSnapshot.toJson();
                 Log.d(TAG, "currentPos: " + this.currentPosition.toString());
             }
 
         }
     }
 
+    /**
+     * The position at the given capture time,
+     * interpolated from the fixes before and
+     * after it. Falls back to the position
+     * saved when the capture was triggered.
+     */
+    private JSONObject getPositionAt(long captureNanos) {
+        GpsCommunication gps = GpsCommunication.getInstance();
+        if (gps != null && gps.getPositionAt(captureNanos, this.positionSnapshot)) {
+            return this.positionSnapshot.toJson();
+        }
+        return this.currentPosition;
+    }
+
     private String getLocalFilePath(String fileName) {
         File folder = new File(dataFolderPath);
         String filePath = folder + "/" + fileName;
@@ -277,7 +336,8 @@ public class CameraActivity extends Activity implements GpsDataCallback {
             File outputFile = new File(filePath);
             this.updateCurrentPosition();
             camera.takeVideoSnapshot(outputFile);
-            startEventTimestamp = this.getCurrentTimeMs();
+            startEventNanos = SystemClock.elapsedRealtimeNanos();
+            startEventTimestamp = getTimeMs(startEventNanos);
         }
 
         this.isCapturing = !this.isCapturing;
@@ -287,7 +347,8 @@ public class CameraActivity extends Activity implements GpsDataCallback {
         CameraView camera = getCamera();
         camera.setMode(Mode.PICTURE);
         this.updateCurrentPosition();
-        startEventTimestamp = this.getCurrentTimeMs();
+        startEventNanos = SystemClock.elapsedRealtimeNanos();
+        startEventTimestamp = getTimeMs(startEventNanos);
         camera.takePictureSnapshot();
     }
 
@@ -313,7 +374,8 @@ public class CameraActivity extends Activity implements GpsDataCallback {
      * relative to that timeframe
      */
     public void syncClock(long currentTimeMs) {
-        this.syncedClockOffsetMs = currentTimeMs - System.currentTimeMillis();
+        this.clockSyncNanos = SystemClock.elapsedRealtimeNanos();
+        this.clockSyncTimestamp = currentTimeMs;
     }
 
     public void onRecordButtonClick(View view) {
@@ -335,10 +397,12 @@ public class CameraActivity extends Activity implements GpsDataCallback {
 
     @Override
     public void onData(GPSPosition pos) {
-        if (this.mode == CameraMode.PHOTO_SERIES && this.isCapturing) {
+        // Only the primary receiver triggers photos
+        if (this.mode == CameraMode.PHOTO_SERIES && this.isCapturing && pos.source == 0) {
             this.currentPosition = pos.toJson();
             CameraView camera = getCamera();
-            startEventTimestamp = this.getCurrentTimeMs();
+            startEventNanos = SystemClock.elapsedRealtimeNanos();
+            startEventTimestamp = getTimeMs(startEventNanos);
             camera.takePictureSnapshot();
         }
     }
@@ -0,0 +1,262 @@
+package com.cordovapluginfastcam;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Maps the monotonic SystemClock.elapsedRealtimeNanos
+ * to UTC, disciplined by the receiver's UTC time.
+ *
+ * Every fix pairs the UTC time of its epoch
+ * with the arrival time of the data. Data can
+ * only arrive late, so of each second only the
+ * pair with the least delay is kept. Over a
+ * sliding window of these pairs, the drift of
+ * the phone's clock is estimated as the median
+ * of the slopes between samples half a window
+ * apart, and the offset as the median of the
+ * remaining residuals (Theil-Sen). Single late
+ * chunks or time glitches therefore don't move
+ * the estimate.
+ *
+ * Until enough fixes arrived, the wall clock at
+ * creation time is carried forward with the
+ * monotonic clock, so timestamps never jump
+ * when the wall clock is adjusted.
+ *
+ * The receiver sends an epoch a few ms after
+ * its UTC time, so timestamps are late by that
+ * constant transmission delay.
+ */
+public class ClockDiscipline {
+    private static final int WINDOW_SIZE = 256;
+    private static final long SAMPLE_INTERVAL_NANOS = 1000000000L;
+    private static final int MIN_SAMPLES = 4;
+    /**
+     * The drift is only estimated over
+     * a long enough time span, before
+     * that the phone's clock rate is used
+     */
+    private static final int MIN_DRIFT_SAMPLES = 32;
+    /**
+     * Phone oscillators are much better than
+     * that, larger values are estimation errors
+     */
+    private static final double MAX_DRIFT = 500e-6;
+    /**
+     * Samples further off the current
+     * estimate are treated as outliers
+     */
+    private static final long MAX_RESIDUAL_NANOS = 50000000L;
+    /**
+     * After that many outliers in a row, the
+     * receiver's time really changed (e.g. a
+     * leap second or a new receiver), start over
+     */
+    private static final int MAX_CONSECUTIVE_OUTLIERS = 8;
+    private static final long NANOS_PER_DAY = 86400000000000L;
+
+    /**
+     * Immutable estimate, replaced as a whole
+     * so readers never see half of an update
+     */
+    private static class Estimate {
+        final long referenceElapsedNanos;
+        /**
+         * UTC (epoch nanos) minus elapsed
+         * nanos at the reference time
+         */
+        final double offsetNanos;
+        /**
+         * Rate error of the elapsed clock,
+         * UTC nanos per elapsed nanos minus 1
+         */
+        final double drift;
+        final boolean locked;
+
+        Estimate(long referenceElapsedNanos, double offsetNanos, double drift, boolean locked) {
+            this.referenceElapsedNanos = referenceElapsedNanos;
+            this.offsetNanos = offsetNanos;
+            this.drift = drift;
+            this.locked = locked;
+        }
+
+        double toUtcNanos(long elapsedNanos) {
+            long elapsedSinceReference = elapsedNanos - referenceElapsedNanos;
+            return elapsedNanos + offsetNanos + elapsedSinceReference * drift;
+        }
+    }
+
+    private volatile Estimate estimate;
+
+    // Only accessed by the thread adding samples
+    private final long[] elapsedSamples = new long[WINDOW_SIZE];
+    private final double[] offsetSamples = new double[WINDOW_SIZE];
+    private final double[] scratch = new double[WINDOW_SIZE];
+    private int sampleCount = 0;
+    private int nextSample = 0;
+    private int consecutiveOutliers = 0;
+    /**
+     * Least delayed pair of the
+     * current sample interval
+     */
+    private long intervalStart = 0;
+    private long bestElapsed = 0;
+    private double bestOffset = 0;
+
+    public ClockDiscipline() {
+        this.estimate = unlockedEstimate();
+    }
+
+    /**
+     * Carries the current wall clock
+     * forward with the monotonic clock
+     */
+    private static Estimate unlockedEstimate() {
+        long elapsedNanos = SystemClock.elapsedRealtimeNanos();
+        double wallNanos = System.currentTimeMillis() * 1e6;
+        return new Estimate(elapsedNanos, wallNanos - elapsedNanos, 0, false);
+    }
+
+    /**
+     * Adds the UTC time of a fix.
+     *
+     * @param utcTimeOfDay receiver time in the hhmmss.ss form of GPSPosition.time
+     * @param arrivalNanos elapsedRealtimeNanos when the fix arrived
+     */
+    public void addSample(double utcTimeOfDay, long arrivalNanos) {
+        if (utcTimeOfDay <= 0 || arrivalNanos == 0) {
+            return;
+        }
+        double offset = toUtcNanos(utcTimeOfDay, arrivalNanos) - arrivalNanos;
+
+        Estimate current = this.estimate;
+        if (current.locked) {
+            double residual = offset - (current.toUtcNanos(arrivalNanos) - arrivalNanos);
+            if (Math.abs(residual) > MAX_RESIDUAL_NANOS) {
+                this.consecutiveOutliers += 1;
+                if (this.consecutiveOutliers < MAX_CONSECUTIVE_OUTLIERS) {
+                    return;
+                }
+                this.sampleCount = 0;
+                this.nextSample = 0;
+                this.bestElapsed = 0;
+                // Otherwise the new samples would be outliers
+                // of the old estimate and never fill the window
+                this.estimate = unlockedEstimate();
+            }
+        }
+        this.consecutiveOutliers = 0;
+
+        if (this.bestElapsed != 0 && arrivalNanos - this.intervalStart < SAMPLE_INTERVAL_NANOS) {
+            // Larger offset = less delay
+            if (offset > this.bestOffset) {
+                this.bestElapsed = arrivalNanos;
+                this.bestOffset = offset;
+            }
+            return;
+        }
+        if (this.bestElapsed != 0) {
+            this.addToWindow(this.bestElapsed, this.bestOffset);
+        }
+        this.intervalStart = arrivalNanos;
+        this.bestElapsed = arrivalNanos;
+        this.bestOffset = offset;
+    }
+
+    private void addToWindow(long elapsedNanos, double offset) {
+        this.elapsedSamples[this.nextSample] = elapsedNanos;
+        this.offsetSamples[this.nextSample] = offset;
+        this.nextSample = (this.nextSample + 1) % WINDOW_SIZE;
+        this.sampleCount = Math.min(this.sampleCount + 1, WINDOW_SIZE);
+
+        if (this.sampleCount >= MIN_SAMPLES) {
+            this.estimate = this.fit(elapsedNanos);
+        }
+    }
+
+    /**
+     * Turns the receiver's time of day into
+     * epoch nanos. The date is taken from the
+     * wall clock, which only needs to be right
+     * within 12 hours.
+     */
+    private static double toUtcNanos(double utcTimeOfDay, long arrivalNanos) {
+        int whole = (int) utcTimeOfDay;
+        double secondsOfDay = (whole / 10000) * 3600 + ((whole / 100) % 100) * 60 + (utcTimeOfDay - (whole / 100) * 100);
+        long wallNanos = System.currentTimeMillis() * 1000000L - (SystemClock.elapsedRealtimeNanos() - arrivalNanos);
+        long dayStart = Math.floorDiv(wallNanos, NANOS_PER_DAY) * NANOS_PER_DAY;
+        double utcNanos = dayStart + secondsOfDay * 1e9;
+        if (utcNanos - wallNanos > NANOS_PER_DAY / 2) {
+            utcNanos -= NANOS_PER_DAY;
+        } else if (wallNanos - utcNanos > NANOS_PER_DAY / 2) {
+            utcNanos += NANOS_PER_DAY;
+        }
+        return utcNanos;
+    }
+
+    private Estimate fit(long referenceElapsedNanos) {
+        int n = this.sampleCount;
+        int oldest = n < WINDOW_SIZE ? 0 : this.nextSample;
+
+        // Slopes between samples half a window apart
+        double drift = 0;
+        if (n >= MIN_DRIFT_SAMPLES) {
+            int half = n / 2;
+            int slopeCount = 0;
+            for (int i = 0; i < n - half; i += 1) {
+                int a = (oldest + i) % WINDOW_SIZE;
+                int b = (oldest + i + half) % WINDOW_SIZE;
+                long dt = this.elapsedSamples[b] - this.elapsedSamples[a];
+                if (dt > 0) {
+                    this.scratch[slopeCount] = (this.offsetSamples[b] - this.offsetSamples[a]) / dt;
+                    slopeCount += 1;
+                }
+            }
+            if (slopeCount > 0) {
+                drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, median(this.scratch, slopeCount)));
+            }
+        }
+
+        for (int i = 0; i < n; i += 1) {
+            this.scratch[i] = this.offsetSamples[i] - drift * (this.elapsedSamples[i] - referenceElapsedNanos);
+        }
+        double offset = median(this.scratch, n);
+        return new Estimate(referenceElapsedNanos, offset, drift, true);
+    }
+
+    private static double median(double[] values, int count) {
+        Arrays.sort(values, 0, count);
+        int middle = count / 2;
+        return count % 2 == 1 ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+    }
+
+    /**
+     * true once the receiver's time is used,
+     * false while the wall clock is used
+     */
+    public boolean isSynchronized() {
+        return this.estimate.locked;
+    }
+
+    /**
+     * UTC in (fractional) milliseconds since
+     * the epoch, at the given elapsedRealtimeNanos
+     */
+    public double toEpochMillis(long elapsedNanos) {
+        return this.estimate.toUtcNanos(elapsedNanos) / 1e6;
+    }
+
+    public double currentTimeMillis() {
+        return this.toEpochMillis(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Estimated rate error of the phone's
+     * clock in parts per million
+     */
+    public double getDriftPpm() {
+        return this.estimate.drift * 1e6;
+    }
+}
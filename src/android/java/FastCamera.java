@@ -3,10 +3,14 @@ package com.cordovapluginfastcam;
 import android.app.Activity;
 import android.content.Intent;
 import android.content.Context;
+import android.net.Uri;
 import android.os.Bundle;
+import android.util.Base64;
 import android.util.Log;
 import android.view.View;
 
+import com.cordovapluginfastcam.math.PointAltitudeInterpolator;
+
 import org.apache.cordova.CordovaPlugin;
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.PluginResult;
@@ -15,13 +19,20 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class FastCamera extends CordovaPlugin implements GpsDataCallback {
     private static final String TAG = "CameraTestApp";
     private CallbackContext startCameraCallback = null;
-    private CallbackContext positionDataCallback = null;
+    private volatile BridgeSubscription positionSubscription = null;
 
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
@@ -33,21 +44,54 @@ public class FastCamera extends CordovaPlugin implements GpsDataCallback {
         }
 
         if (action.equals("initGps")) {
-            this.positionDataCallback = callbackContext;
-            this.initGps(args);
+            this.initGps(args, callbackContext);
             return true;
         }
 
         if (action.equals("simulateGps")) {
-            this.positionDataCallback = callbackContext;
-            this.simulateGps(args);
+            this.simulateGps(args, callbackContext);
+            return true;
+        }
+
+        if (action.equals("replayGps")) {
+            this.replayGps(args, callbackContext);
+            return true;
+        }
+
+        if (action.equals("onGeoidModelReady")) {
+            this.onGeoidModelReady(callbackContext);
+            return true;
+        }
+
+        if (action.equals("getGpsLatencyStats")) {
+            GpsCommunication gps = GpsCommunication.getInstance(this.cordova.getActivity());
+            callbackContext.success(gps.getLatencyTracer().toJson());
+            // true = start a new measurement
+            if (args.optBoolean(0, false)) {
+                gps.getLatencyTracer().reset();
+            }
+            return true;
+        }
+
+        if (action.equals("correctHeights")) {
+            this.correctHeights(args, callbackContext);
+            return true;
+        }
+
+        if (action.equals("startGpsRecording")) {
+            this.startGpsRecording(args, callbackContext);
+            return true;
+        }
+
+        if (action.equals("stopGpsRecording")) {
+            this.stopGpsRecording(callbackContext);
             return true;
         }
 
         return false;
     }
 
-    private void simulateGps(JSONArray args) {
+    private void simulateGps(JSONArray args, CallbackContext callbackContext) {
         Double altOffset = 0d;
         try {
             altOffset = args.getDouble(0);
@@ -56,11 +100,190 @@ public class FastCamera extends CordovaPlugin implements GpsDataCallback {
         }
 
         GpsCommunication gps = GpsCommunication.getInstance(this.cordova.getActivity());
-        gps.configure(0, altOffset, GpsCommunication.GeoidModel.alto_adige);
+        gps.configure(0, altOffset, GpsCommunication.GeoidModel.alto_adige, GpsCommunication.Protocol.NMEA, getInterpolation(args.optJSONObject(1)));
+        this.setPositionSubscription(new BridgeSubscription(callbackContext, args.optJSONObject(1), gps.getPositionHistory(), gps.getLatencyTracer()));
+        gps.addEventListener(this);
         // true = simulate gps position
         gps.initialize(true);
     }
 
+    private void replayGps(JSONArray args, CallbackContext callbackContext) {
+        String path = args.optString(0, "");
+        double speed = args.optDouble(1, 1);
+        Double altOffset = args.optDouble(2, 0);
+        GpsCommunication.GeoidModel geoidModel = getGeoidModel(args.optInt(3, 0));
+        GpsCommunication.Protocol protocol = getProtocol(args.optInt(4, 0));
+        if (geoidModel == null) {
+            callbackContext.error("Unknown geoid model " + args.opt(3));
+            return;
+        }
+        if (protocol == null) {
+            callbackContext.error("Unknown protocol " + args.opt(4));
+            return;
+        }
+
+        // Accept both plain paths and file:// URLs
+        File log = new File(path.startsWith("file://") ? Uri.parse(path).getPath() : path);
+        if (!log.canRead()) {
+            callbackContext.error("Can't read GPS log " + path);
+            return;
+        }
+
+        GpsCommunication gps = GpsCommunication.getInstance(this.cordova.getActivity());
+        gps.configure(0, altOffset, geoidModel, protocol, getInterpolation(args.optJSONObject(5)));
+        this.setPositionSubscription(new BridgeSubscription(callbackContext, args.optJSONObject(5), gps.getPositionHistory(), gps.getLatencyTracer()));
+        gps.addEventListener(this);
+        gps.replay(log, speed);
+    }
+
+    /**
+     * "bilinear" (default) or "bicubic"
+     */
+    private static PointAltitudeInterpolator.Interpolation getInterpolation(JSONObject options) {
+        if (options != null && "bicubic".equals(options.optString("interpolation", "bilinear"))) {
+            return PointAltitudeInterpolator.Interpolation.BICUBIC;
+        }
+        return PointAltitudeInterpolator.Interpolation.BILINEAR;
+    }
+
+    private void startGpsRecording(JSONArray args, CallbackContext callbackContext) {
+        String path = args.optString(0, "");
+        File file = path.isEmpty()
+                ? new File(this.cordova.getActivity().getFilesDir(), "gps-" + System.currentTimeMillis() + ".log")
+                : new File(path.startsWith("file://") ? Uri.parse(path).getPath() : path);
+        GpsCommunication gps = GpsCommunication.getInstance(this.cordova.getActivity());
+        this.cordova.getThreadPool().execute(() -> {
+            try {
+                gps.startRecording(file);
+                callbackContext.success(file.getAbsolutePath());
+            } catch (IOException e) {
+                callbackContext.error(e.getMessage());
+            }
+        });
+    }
+
+    private void stopGpsRecording(CallbackContext callbackContext) {
+        GpsCommunication gps = GpsCommunication.getInstance(this.cordova.getActivity());
+        this.cordova.getThreadPool().execute(() -> {
+            try {
+                GpsRecorder recorder = gps.stopRecording();
+                if (recorder == null) {
+                    callbackContext.error("Not recording");
+                    return;
+                }
+                JSONObject result = new JSONObject();
+                result.put("path", recorder.getFile().getAbsolutePath());
+                result.put("bytes", recorder.getFile().length());
+                result.put("droppedChunks", recorder.getDroppedChunks());
+                callbackContext.success(result);
+            } catch (IOException | JSONException e) {
+                callbackContext.error(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Corrects the ellipsoidal heights of packed
+     * little-endian float64 (lat, lon, height)
+     * triples with a geoid model, and sends back
+     * the corrected heights as float64 values.
+     * Points outside of the model get NaN.
+     * args: the triples (ArrayBuffer, which arrives
+     * as base64), the geoid model or -1 for
+     * the one configured in initGps, optionally
+     * { interpolation } for the given model
+     */
+    private void correctHeights(JSONArray args, CallbackContext callbackContext) {
+        String coordinates = args.optString(0, "");
+        int geoidModelIndex = args.optInt(1, -1);
+        PointAltitudeInterpolator.Interpolation interpolation = getInterpolation(args.optJSONObject(2));
+        Activity activity = this.cordova.getActivity();
+        this.cordova.getThreadPool().execute(() -> {
+            try {
+                DoubleBuffer values = ByteBuffer.wrap(Base64.decode(coordinates, Base64.DEFAULT))
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                int count = values.remaining() / 3;
+                double[] lats = new double[count];
+                double[] lons = new double[count];
+                double[] heights = new double[count];
+                for (int i = 0; i < count; i += 1) {
+                    lats[i] = values.get();
+                    lons[i] = values.get();
+                    heights[i] = values.get();
+                    if (!isFinite(lats[i]) || !isFinite(lons[i]) || !isFinite(heights[i])) {
+                        callbackContext.error("Coordinates " + i + " aren't finite");
+                        return;
+                    }
+                }
+
+                GeoidHeight geoidHeight;
+                if (geoidModelIndex >= 0) {
+                    GpsCommunication.GeoidModel geoidModel = getGeoidModel(geoidModelIndex);
+                    if (geoidModel == null) {
+                        callbackContext.error("Unknown geoid model " + geoidModelIndex);
+                        return;
+                    }
+                    geoidHeight = GeoidHeight.load(activity, geoidModel.name(), GpsCommunication.getCoordinatesType(geoidModel), interpolation);
+                } else {
+                    GpsCommunication gps = GpsCommunication.getInstance();
+                    Future<GeoidHeight> geoidModel = gps != null ? gps.getGeoidModel() : null;
+                    if (geoidModel == null) {
+                        callbackContext.error("No geoid model configured, call initGps or pass geoidModel");
+                        return;
+                    }
+                    geoidHeight = geoidModel.get();
+                }
+                if (geoidHeight == null || geoidHeight.getInterpolator() == null) {
+                    callbackContext.error("The geoid model couldn't be loaded");
+                    return;
+                }
+
+                double[] geoidHeights = new double[count];
+                geoidHeight.getInterpolator().interpolateGeoidHeights(lats, lons, geoidHeights);
+
+                ByteBuffer result = ByteBuffer.allocate(count * 8).order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < count; i += 1) {
+                    result.putDouble(heights[i] - geoidHeights[i]);
+                }
+                callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, result.array()));
+            } catch (IOException | IllegalArgumentException e) {
+                callbackContext.error(e.getMessage());
+            } catch (ExecutionException e) {
+                callbackContext.error(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                callbackContext.error("Interrupted");
+            } catch (RuntimeException e) {
+                // The promise must always be settled
+                Log.e(TAG, "Couldn't correct heights", e);
+                callbackContext.error(e.toString());
+            }
+        });
+    }
+
+    /**
+     * @return null if there is no model
+     * with that index
+     */
+    private static GpsCommunication.GeoidModel getGeoidModel(int index) {
+        GpsCommunication.GeoidModel[] models = GpsCommunication.GeoidModel.values();
+        return index >= 0 && index < models.length ? models[index] : null;
+    }
+
+    /**
+     * @return null if there is no protocol
+     * with that index
+     */
+    private static GpsCommunication.Protocol getProtocol(int index) {
+        GpsCommunication.Protocol[] protocols = GpsCommunication.Protocol.values();
+        return index >= 0 && index < protocols.length ? protocols[index] : null;
+    }
+
+    private static boolean isFinite(double value) {
+        // Also false for NaN
+        return Math.abs(value) <= Double.MAX_VALUE;
+    }
+
     private void startCamera(JSONArray args) {
         String mode = "SINGLE_PHOTO";
         long clockSyncTimestamp = 0l;
@@ -80,10 +303,11 @@ public class FastCamera extends CordovaPlugin implements GpsDataCallback {
         this.cordova.getActivity().startActivityForResult(intent, 0);
     }
 
-    private void initGps(JSONArray args) {
+    private void initGps(JSONArray args, CallbackContext callbackContext) {
         int baudRate = 0;
         Double altOffset = 0d;
         GpsCommunication.GeoidModel geoidModel = GpsCommunication.GeoidModel.alto_adige;
+        GpsCommunication.Protocol protocol = GpsCommunication.Protocol.NMEA;
         try {
             baudRate = args.getInt(0);
         } catch (JSONException e) {
@@ -96,22 +320,111 @@ public class FastCamera extends CordovaPlugin implements GpsDataCallback {
         }
 
         try {
-            geoidModel = GpsCommunication.GeoidModel.values()[args.getInt(2)];
+            geoidModel = getGeoidModel(args.getInt(2));
         } catch (JSONException e) {
             e.printStackTrace();
         }
+        if (geoidModel == null) {
+            callbackContext.error("Unknown geoid model " + args.opt(2));
+            return;
+        }
+
+        try {
+            protocol = getProtocol(args.getInt(3));
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        if (protocol == null) {
+            callbackContext.error("Unknown protocol " + args.opt(3));
+            return;
+        }
+
+        // Optional: { maxRate, fields, batch, encoding, receivers, interpolation }
+        JSONObject options = args.optJSONObject(4);
+        JSONArray receivers = options != null ? options.optJSONArray("receivers") : null;
+        GpsCommunication.ReceiverConfig[] configs = null;
+        if (receivers != null && receivers.length() > 0) {
+            configs = new GpsCommunication.ReceiverConfig[receivers.length()];
+            for (int i = 0; i < configs.length; i += 1) {
+                JSONObject receiver = receivers.optJSONObject(i);
+                configs[i] = new GpsCommunication.ReceiverConfig();
+                if (receiver != null) {
+                    configs[i].device = receiver.optInt("device", 0);
+                    configs[i].port = receiver.optInt("port", 0);
+                    configs[i].baudRate = receiver.optInt("baudRate", 0);
+                    if (receiver.has("protocol")) {
+                        configs[i].protocol = getProtocol(receiver.optInt("protocol", -1));
+                        if (configs[i].protocol == null) {
+                            callbackContext.error("Unknown protocol " + receiver.opt("protocol") + " of receiver " + i);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
 
         GpsCommunication gps = GpsCommunication.getInstance(this.cordova.getActivity());
-        gps.configure(baudRate, altOffset, geoidModel);
+        gps.configure(baudRate, altOffset, geoidModel, protocol, getInterpolation(options));
+        if (configs != null) {
+            try {
+                gps.setReceivers(configs);
+            } catch (IllegalArgumentException e) {
+                callbackContext.error(e.getMessage());
+                return;
+            }
+        }
+        this.setPositionSubscription(new BridgeSubscription(callbackContext, options, gps.getPositionHistory(), gps.getLatencyTracer()));
         gps.addEventListener(this);
-        gps.initialize();
+        // Probing USB can take a while, keep
+        // the bridge thread free
+        this.cordova.getThreadPool().execute(gps::initialize);
+    }
+
+    /**
+     * Reports when the geoid model configured
+     * by initGps is loaded. Until then, positions
+     * are marked with geoidPending.
+     */
+    private void onGeoidModelReady(CallbackContext callbackContext) {
+        GpsCommunication gps = GpsCommunication.getInstance(this.cordova.getActivity());
+        gps.setGeoidModelListener((model, loadTimeNanos, error) -> {
+            PluginResult pluginResult;
+            if (error != null) {
+                pluginResult = new PluginResult(PluginResult.Status.ERROR, error.getMessage());
+            } else {
+                JSONObject result = new JSONObject();
+                try {
+                    result.put("geoidModel", model.ordinal());
+                    result.put("loadTimeMs", loadTimeNanos / 1e6);
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+                pluginResult = new PluginResult(PluginResult.Status.OK, result);
+            }
+            // A later initGps may load another model
+            pluginResult.setKeepCallback(true);
+            callbackContext.sendPluginResult(pluginResult);
+        });
+    }
+
+    /**
+     * Replaces the subscription of a previous
+     * initGps, which must not send anymore
+     */
+    private synchronized void setPositionSubscription(BridgeSubscription subscription) {
+        BridgeSubscription previous = this.positionSubscription;
+        this.positionSubscription = subscription;
+        if (previous != null) {
+            previous.close();
+        }
     }
 
     @Override
     public void onData(GPSPosition pos) {
-        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, pos.toJson());
-        pluginResult.setKeepCallback(true); // keep callback
-        this.positionDataCallback.sendPluginResult(pluginResult);
+        BridgeSubscription subscription = this.positionSubscription;
+        if (subscription != null) {
+            subscription.onData(pos);
+        }
     }
 
     @Override
@@ -1,11 +1,10 @@
 package com.cordovapluginfastcam;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 
 public class FileUtils {
@@ -30,6 +29,25 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Powers of ten which are exact doubles
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    /**
+     * Largest mantissa which is
+     * an exact double (2^53)
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /**
+     * Size of the buffer readMatrix parses from,
+     * also the longest value it accepts
+     */
+    private static final int READ_BUFFER_SIZE = 65536;
+
     /**
      * Reads a number matrix from
      * a text file in the form of:
@@ -38,33 +56,194 @@ public class FileUtils {
      * n n n n
      * n n n n
      * .......
+     *
+     * Numbers can be separated by any amount
+     * of spaces or tabs, empty lines are skipped.
+     * The stream is parsed as it is read, through
+     * a fixed-size buffer into one flat array,
+     * which is split into rows at the end. It is read until
+     * its end, but not closed.
+     *
+     * @throws IOException if the rows don't
+     * all have the same number of values, or
+     * a value is not a number
      */
-    public static double[][] readMatrix(InputStream file) {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(file));
-        ArrayList<double[]> rows = new ArrayList<>();
-
-        try {
-            while (reader.ready()) {
-                String line = reader.readLine();
-                String[] splitted = line.split(" ");
-                double[] parsed = new double[splitted.length];
-                for (int j = 0; j < splitted.length; j += 1) {
-                    parsed[j] = Double.parseDouble(splitted[j]);
+    public static double[][] readMatrix(InputStream file) throws IOException {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        // Bytes in the buffer, the first one not parsed yet
+        int length = 0;
+        int i = 0;
+        boolean eof = false;
+
+        // All values, row after row
+        double[] values = new double[4096];
+        int numValues = 0;
+        int numRows = 0;
+        int col = 0;
+        // Taken from the first row
+        int numCols = -1;
+        while (true) {
+            boolean rowEnd = i == length && eof;
+            if (rowEnd || (i < length && buffer[i] == '\n')) {
+                if (col > 0) {
+                    if (numCols >= 0 && col != numCols) {
+                        throw new IOException("Row " + numRows + " has " + col + " values, expected " + numCols);
+                    }
+                    numCols = col;
+                    numRows += 1;
+                    col = 0;
                 }
-                rows.add(parsed);
+                if (rowEnd) {
+                    break;
+                }
+                i += 1;
+                continue;
+            }
+            if (i == length) {
+                length = 0;
+                i = 0;
+                int read = file.read(buffer);
+                if (read == -1) {
+                    eof = true;
+                } else {
+                    length = read;
+                }
+                continue;
             }
-        } catch(IOException e) {
-            e.printStackTrace();
-        }
 
-        int numRows = rows.size();
-        int numCols = rows.get(0).length;
-        double[][] matrix = new double[numRows][numCols];
+            if (isSeparator(buffer[i])) {
+                i += 1;
+            } else {
+                int end = i + 1;
+                while (true) {
+                    while (end < length && buffer[end] != '\n' && !isSeparator(buffer[end])) {
+                        end += 1;
+                    }
+                    if (end < length || eof) {
+                        break;
+                    }
+                    // The value goes on after the bytes read so
+                    // far, move it to the front and read the rest
+                    if (length - i == buffer.length) {
+                        throw new IOException("Value longer than " + buffer.length + " bytes");
+                    }
+                    System.arraycopy(buffer, i, buffer, 0, length - i);
+                    end -= i;
+                    length -= i;
+                    i = 0;
+                    int read = file.read(buffer, length, buffer.length - length);
+                    if (read == -1) {
+                        eof = true;
+                    } else {
+                        length += read;
+                    }
+                }
 
-        for (int currRow = 0; currRow < rows.size(); currRow += 1) {
-            matrix[currRow] = rows.get(currRow);
+                if (col == numCols) {
+                    throw new IOException("Row " + numRows + " has more than " + numCols + " values");
+                }
+                if (numValues == values.length) {
+                    values = Arrays.copyOf(values, values.length * 2);
+                }
+                values[numValues] = parseDouble(buffer, i, end);
+                numValues += 1;
+                col += 1;
+                i = end;
+            }
         }
 
+        if (numRows == 0) {
+            throw new IOException("The matrix is empty");
+        }
+        double[][] matrix = new double[numRows][];
+        for (int row = 0; row < numRows; row += 1) {
+            matrix[row] = Arrays.copyOfRange(values, row * numCols, (row + 1) * numCols);
+        }
         return matrix;
     }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Parses a decimal number like -12.345e-6 from
+     * the ASCII bytes between start and end.
+     * Gives the same result as Double.parseDouble,
+     * which is only used for numbers that can't
+     * be computed exactly here.
+     */
+    static double parseDouble(byte[] bytes, int start, int end) throws IOException {
+        int i = start;
+        boolean negative = false;
+        if (bytes[i] == '-' || bytes[i] == '+') {
+            negative = bytes[i] == '-';
+            i += 1;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        // Digits after the decimal point
+        int scale = 0;
+        boolean hasPoint = false;
+        boolean exact = true;
+        for (; i < end; i += 1) {
+            int b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                if (mantissa >= MAX_EXACT_MANTISSA / 10) {
+                    exact = false;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                digits += 1;
+                if (hasPoint) {
+                    scale += 1;
+                }
+                if (!exact) {
+                    break;
+                }
+            } else if (b == '.' && !hasPoint) {
+                hasPoint = true;
+            } else {
+                break;
+            }
+        }
+
+        int exponent = 0;
+        if (exact && i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+            i += 1;
+            boolean negativeExponent = false;
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i += 1;
+            }
+            int exponentStart = i;
+            for (; i < end && bytes[i] >= '0' && bytes[i] <= '9' && exponent < 10000; i += 1) {
+                exponent = exponent * 10 + (bytes[i] - '0');
+            }
+            if (i == exponentStart) {
+                exact = false;
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+
+        exponent -= scale;
+        if (!exact || i != end || digits == 0 || exponent < -22 || exponent > 22) {
+            // Long mantissas, large exponents, NaN, ...
+            String token = new String(bytes, start, end - start, StandardCharsets.US_ASCII);
+            try {
+                return Double.parseDouble(token);
+            } catch (NumberFormatException e) {
+                throw new IOException("Not a number: " + token);
+            }
+        }
+
+        // Both the mantissa and the power of ten are
+        // exact, so there is only one rounding step
+        double value = exponent < 0
+                ? mantissa / POWERS_OF_TEN[-exponent]
+                : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
 }
@@ -5,6 +5,15 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 public class GPSPosition {
+    /**
+     * Names of the values in the JSON
+     * representation
+     */
+    public static final String[] FIELDS = {
+            "altitude", "origAltitude", "interpolatedGeoid", "geoidH", "dir", "fixed",
+            "lat", "lon", "quality", "time", "velocity", "source", "geoidPending", "hAcc"
+    };
+
     public double time = 0.0f;
     public double lat = 0.0f;
     public double lon = 0.0f;
@@ -16,29 +25,167 @@ public class GPSPosition {
     public double geoidSeparator = 0.0d;
     public double interpolatedGeoid = 0.0d;
     public double origAltitude = 0.0d;
+    /**
+     * Index of the receiver the fix came
+     * from, 0 is the primary receiver
+     */
+    public int source = 0;
+    /**
+     * The geoid model is still loading,
+     * altitude isn't corrected yet
+     */
+    public boolean geoidPending = false;
+    /**
+     * Horizontal accuracy estimate in meters,
+     * NaN if the receiver doesn't send one
+     * (only UBX does)
+     */
+    public double hAcc = Double.NaN;
+    /**
+     * Latency tracing: when the chunk that
+     * completed this fix arrived, and when
+     * it was parsed, corrected and handed
+     * to a listener. SystemClock.elapsedRealtimeNanos,
+     * 0 if the stage wasn't reached.
+     */
+    public long arrivalNanos = 0;
+    public long parsedNanos = 0;
+    public long correctedNanos = 0;
+    public long dispatchedNanos = 0;
 
     public void updatefix() {
         fixed = quality > 0;
     }
 
+    /**
+     * Copies all values of the other
+     * position into this one
+     */
+    public void copyFrom(GPSPosition other) {
+        this.time = other.time;
+        this.lat = other.lat;
+        this.lon = other.lon;
+        this.fixed = other.fixed;
+        this.quality = other.quality;
+        this.dir = other.dir;
+        this.altitude = other.altitude;
+        this.velocity = other.velocity;
+        this.geoidSeparator = other.geoidSeparator;
+        this.interpolatedGeoid = other.interpolatedGeoid;
+        this.origAltitude = other.origAltitude;
+        this.source = other.source;
+        this.geoidPending = other.geoidPending;
+        this.hAcc = other.hAcc;
+        this.arrivalNanos = other.arrivalNanos;
+        this.parsedNanos = other.parsedNanos;
+        this.correctedNanos = other.correctedNanos;
+        this.dispatchedNanos = other.dispatchedNanos;
+    }
+
     public String toString() {
         return String.format("POSITION: lat: %d, lon: %d, time: %f, Q: %d, dir: %f, alt: %f, vel: %f", lat, lon, time, quality, dir, altitude, velocity);
     }
 
     public JSONObject toJson() {
+        return this.toJson(FIELDS);
+    }
+
+    /**
+     * Numeric value of the given field,
+     * see FIELDS. fixed is 1 or 0,
+     * unknown fields are NaN.
+     */
+    public double getValue(String field) {
+        switch (field) {
+            case "altitude":
+                return this.altitude;
+            case "origAltitude":
+                return this.origAltitude;
+            case "interpolatedGeoid":
+                return this.interpolatedGeoid;
+            case "geoidH":
+                return this.geoidSeparator;
+            case "dir":
+                return this.dir;
+            case "fixed":
+                return this.fixed ? 1 : 0;
+            case "lat":
+                return this.lat;
+            case "lon":
+                return this.lon;
+            case "quality":
+                return this.quality;
+            case "time":
+                return this.time;
+            case "velocity":
+                return this.velocity;
+            case "source":
+                return this.source;
+            case "geoidPending":
+                return this.geoidPending ? 1 : 0;
+            case "hAcc":
+                return this.hAcc;
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * Only includes the given fields,
+     * see FIELDS. Unknown names are ignored.
+     */
+    public JSONObject toJson(String[] fields) {
         JSONObject json = new JSONObject();
         try {
-            json.put("altitude", this.altitude);
-            json.put("origAltitude", this.origAltitude);
-            json.put("interpolatedGeoid", this.interpolatedGeoid);
-            json.put("geoidH", this.geoidSeparator);
-            json.put("dir",  this.dir);
-            json.put("fixed", this.fixed);
-            json.put("lat", this.lat);
-            json.put("lon", this.lon);
-            json.put("quality", this.quality);
-            json.put("time", this.time);
-            json.put("velocity", this.velocity);
+            for (String field : fields) {
+                switch (field) {
+                    case "altitude":
+                        json.put("altitude", this.altitude);
+                        break;
+                    case "origAltitude":
+                        json.put("origAltitude", this.origAltitude);
+                        break;
+                    case "interpolatedGeoid":
+                        json.put("interpolatedGeoid", this.interpolatedGeoid);
+                        break;
+                    case "geoidH":
+                        json.put("geoidH", this.geoidSeparator);
+                        break;
+                    case "dir":
+                        json.put("dir",  this.dir);
+                        break;
+                    case "fixed":
+                        json.put("fixed", this.fixed);
+                        break;
+                    case "lat":
+                        json.put("lat", this.lat);
+                        break;
+                    case "lon":
+                        json.put("lon", this.lon);
+                        break;
+                    case "quality":
+                        json.put("quality", this.quality);
+                        break;
+                    case "time":
+                        json.put("time", this.time);
+                        break;
+                    case "velocity":
+                        json.put("velocity", this.velocity);
+                        break;
+                    case "source":
+                        json.put("source", this.source);
+                        break;
+                    case "geoidPending":
+                        json.put("geoidPending", this.geoidPending);
+                        break;
+                    case "hAcc":
+                        // JSON has no NaN
+                        if (!Double.isNaN(this.hAcc)) {
+                            json.put("hAcc", this.hAcc);
+                        }
+                        break;
+                }
+            }
         } catch (JSONException e) {
             e.printStackTrace();
         }
@@ -1,38 +1,310 @@
 package com.cordovapluginfastcam;
 
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+import com.cordovapluginfastcam.math.GridHeights;
+import com.cordovapluginfastcam.math.GridIndex;
 import com.cordovapluginfastcam.math.PointAltitudeInterpolator;
+import com.cordovapluginfastcam.math.TiledGrid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class GeoidHeight {
+    private static final String TAG = "GeoidHeight";
+    /**
+     * Written by convert_geoid_grids.js,
+     * next to the text grids
+     */
+    private static final String BINARY_GRID_FILE = "grid.bin";
+    /**
+     * Written by convert_geoid_grids.js --tiled,
+     * for models too large for memory
+     */
+    private static final String TILED_GRID_FILE = "grid.tiles";
+    /**
+     * KD-trees of irregular grids, in the
+     * cache dir, see PointAltitudeInterpolator
+     */
+    private static final String TREE_CACHE_DIR = "geoid-kdtree";
+    /**
+     * Models loaded so far, shared by the whole
+     * process. Models which aren't in use can be
+     * freed when memory gets low.
+     */
+    private static final ConcurrentHashMap<String, SoftReference<GeoidHeight>> cache = new ConcurrentHashMap<>();
+
     private InputStream gridXFile;
     private InputStream gridYFile;
     private InputStream gridHFile;
     private PointAltitudeInterpolator interpolator;
 
-    public GeoidHeight(InputStream gridXFile, InputStream gridYFile, InputStream gridHFile, PointAltitudeInterpolator.GridCoordinatesType coordinatesType) {
+    /**
+     * Parses the X and Y grids
+     * while the caller parses H
+     */
+    private static final ExecutorService gridParser = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "GeoidGridParser");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public GeoidHeight(InputStream gridXFile, InputStream gridYFile, InputStream gridHFile, PointAltitudeInterpolator.GridCoordinatesType coordinatesType) throws IOException {
+        this(gridXFile, gridYFile, gridHFile, coordinatesType, null);
+    }
+
+    /**
+     * @param treeCacheDir where the KD-tree of an irregular
+     *                     grid is saved for the next launch,
+     *                     or null
+     */
+    public GeoidHeight(InputStream gridXFile, InputStream gridYFile, InputStream gridHFile, PointAltitudeInterpolator.GridCoordinatesType coordinatesType, File treeCacheDir) throws IOException {
         this.gridXFile = gridXFile;
         this.gridYFile = gridYFile;
         this.gridHFile = gridHFile;
-        this.createInterpolator(coordinatesType);
+        this.createInterpolator(coordinatesType, treeCacheDir);
+    }
+
+    public GeoidHeight(PointAltitudeInterpolator interpolator) {
+        this.interpolator = interpolator;
     }
 
     /**
-     * Reads the geoid file,
-     * brings its data in the
-     * needed format, and
+     * Returns the model in the given assets
+     * folder if it is already loaded, or null
      */
-    private void createInterpolator(PointAltitudeInterpolator.GridCoordinatesType coordinatesType) {
-        double[][] gridXMatrix = FileUtils.readMatrix(this.gridXFile);
-        double[][] gridYMatrix = FileUtils.readMatrix(this.gridYFile);
-        double[][] gridHMatrix = FileUtils.readMatrix(this.gridHFile);
+    public static GeoidHeight getCached(String folder, PointAltitudeInterpolator.GridCoordinatesType coordinatesType) {
+        return getCached(folder, coordinatesType, PointAltitudeInterpolator.Interpolation.BILINEAR);
+    }
+
+    public static GeoidHeight getCached(String folder, PointAltitudeInterpolator.GridCoordinatesType coordinatesType, PointAltitudeInterpolator.Interpolation interpolation) {
+        SoftReference<GeoidHeight> reference = cache.get(getCacheKey(folder, coordinatesType, interpolation));
+        return reference != null ? reference.get() : null;
+    }
 
+    /**
+     * Like fromAssets, but loads every
+     * model only once
+     */
+    public static GeoidHeight load(Context context, String folder, PointAltitudeInterpolator.GridCoordinatesType coordinatesType) throws IOException {
+        return load(context, folder, coordinatesType, PointAltitudeInterpolator.Interpolation.BILINEAR);
+    }
+
+    /**
+     * Bicubic models share the heights of
+     * the bilinear one, only their
+     * coefficients are computed
+     */
+    public static GeoidHeight load(Context context, String folder, PointAltitudeInterpolator.GridCoordinatesType coordinatesType, PointAltitudeInterpolator.Interpolation interpolation) throws IOException {
+        GeoidHeight geoidHeight = getCached(folder, coordinatesType, interpolation);
+        if (geoidHeight != null) {
+            return geoidHeight;
+        }
+        if (interpolation == PointAltitudeInterpolator.Interpolation.BILINEAR) {
+            geoidHeight = fromAssets(context, folder, coordinatesType);
+        } else {
+            geoidHeight = load(context, folder, coordinatesType);
+            if (geoidHeight.getInterpolator() != null) {
+                geoidHeight = new GeoidHeight(geoidHeight.getInterpolator().withInterpolation(interpolation));
+            }
+        }
+        if (geoidHeight.getInterpolator() != null) {
+            cache.put(getCacheKey(folder, coordinatesType, interpolation), new SoftReference<>(geoidHeight));
+        }
+        return geoidHeight;
+    }
+
+    private static String getCacheKey(String folder, PointAltitudeInterpolator.GridCoordinatesType coordinatesType, PointAltitudeInterpolator.Interpolation interpolation) {
+        return folder + "/" + coordinatesType + "/" + interpolation;
+    }
+
+    /**
+     * Loads the model in the given assets folder.
+     * The binary grid is memory-mapped, so loading
+     * takes next to no time. Models without one
+     * are parsed from the text grids.
+     */
+    public static GeoidHeight fromAssets(Context context, String folder, PointAltitudeInterpolator.GridCoordinatesType coordinatesType) throws IOException {
         try {
-            this.interpolator = new PointAltitudeInterpolator(gridXMatrix, gridYMatrix, gridHMatrix, coordinatesType);
+            TiledGrid tiledGrid = openTiledAsset(context, folder + "/" + TILED_GRID_FILE);
+            return new GeoidHeight(new PointAltitudeInterpolator(tiledGrid, coordinatesType));
+        } catch (FileNotFoundException e) {
+            // Not tiled
+        }
+
+        ByteBuffer binaryGrid = null;
+        try {
+            binaryGrid = mapAsset(context, folder + "/" + BINARY_GRID_FILE);
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "No binary grid for " + folder + ", parsing the text grids");
+        }
+        if (binaryGrid != null) {
+            return new GeoidHeight(new PointAltitudeInterpolator(GridIndex.fromBinary(binaryGrid), coordinatesType));
+        }
+
+        try (InputStream gridX = context.getAssets().open(folder + "/grid_x.txt");
+             InputStream gridY = context.getAssets().open(folder + "/grid_y.txt");
+             InputStream gridH = context.getAssets().open(folder + "/grid_h.txt")) {
+            return new GeoidHeight(gridX, gridY, gridH, coordinatesType, new File(context.getCacheDir(), TREE_CACHE_DIR));
+        }
+    }
+
+    /**
+     * Loads a tiled model from a file, e.g. a
+     * national model downloaded by the app.
+     * Only the tiles in use are kept in memory.
+     */
+    public static GeoidHeight fromTiledFile(File file, PointAltitudeInterpolator.GridCoordinatesType coordinatesType) throws IOException {
+        return new GeoidHeight(new PointAltitudeInterpolator(openTiledGrid(file, 0), coordinatesType));
+    }
+
+    /**
+     * Maps the asset directly from the APK if it
+     * is stored uncompressed (see fastcam.gradle),
+     * otherwise from a copy in the files dir
+     */
+    private static ByteBuffer mapAsset(Context context, String assetPath) throws IOException {
+        try (AssetFileDescriptor descriptor = context.getAssets().openFd(assetPath);
+             FileInputStream in = descriptor.createInputStream()) {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, descriptor.getStartOffset(), descriptor.getLength());
+        } catch (FileNotFoundException e) {
+            // Also thrown if the asset is compressed,
+            // in which case it can still be opened
+        }
+
+        File copy = copyAsset(context, assetPath);
+        try (FileInputStream in = new FileInputStream(copy)) {
+            return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, copy.length());
+        }
+    }
+
+    /**
+     * Like mapAsset, but reads the
+     * tiles on demand instead
+     */
+    private static TiledGrid openTiledAsset(Context context, String assetPath) throws IOException {
+        long startOffset = -1;
+        try (AssetFileDescriptor descriptor = context.getAssets().openFd(assetPath)) {
+            startOffset = descriptor.getStartOffset();
+        } catch (FileNotFoundException e) {
+            // Compressed, see mapAsset
+        }
+        if (startOffset >= 0) {
+            // Uncompressed assets are stored as they
+            // are within the APK, read them from there
+            return openTiledGrid(new File(context.getApplicationInfo().sourceDir), startOffset);
+        }
+        return openTiledGrid(copyAsset(context, assetPath), 0);
+    }
+
+    private static TiledGrid openTiledGrid(File file, long baseOffset) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return TiledGrid.open(in, baseOffset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies a compressed asset to the files dir,
+     * unless an up to date copy exists
+     *
+     * @throws FileNotFoundException if there is no such asset
+     */
+    private static File copyAsset(Context context, String assetPath) throws IOException {
+        File copy = new File(context.getFilesDir(), "geoid/" + assetPath);
+        if (!copy.exists() || copy.lastModified() < getInstallTime(context)) {
+            copy.getParentFile().mkdirs();
+            try (InputStream in = context.getAssets().open(assetPath);
+                 OutputStream out = new FileOutputStream(copy)) {
+                byte[] buffer = new byte[16384];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * When the app was installed or updated,
+     * older copies of assets are outdated
+     */
+    private static long getInstallTime(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Reads the geoid files in parallel,
+     * brings their data in the
+     * needed format, and creates
+     * the interpolator
+     */
+    private void createInterpolator(PointAltitudeInterpolator.GridCoordinatesType coordinatesType, File treeCacheDir) throws IOException {
+        Future<double[][]> gridXFuture = gridParser.submit(() -> FileUtils.readMatrix(this.gridXFile));
+        Future<double[][]> gridYFuture = gridParser.submit(() -> FileUtils.readMatrix(this.gridYFile));
+        double[][] gridHMatrix;
+        double[][] gridXMatrix;
+        double[][] gridYMatrix;
+        try {
+            gridHMatrix = FileUtils.readMatrix(this.gridHFile);
+            gridXMatrix = getMatrix(gridXFuture);
+            gridYMatrix = getMatrix(gridYFuture);
+        } finally {
+            // The streams are closed by the caller,
+            // don't leave a parser reading them
+            gridXFuture.cancel(true);
+            gridYFuture.cancel(true);
+        }
+
+        try {
+            // Float heights are exact to micrometers,
+            // far below the accuracy of the grids
+            this.interpolator = new PointAltitudeInterpolator(gridXMatrix, gridYMatrix, gridHMatrix, coordinatesType, GridHeights.Precision.FLOAT, treeCacheDir);
         } catch (PointAltitudeInterpolator.DataNotInGridFormException e) {
             e.printStackTrace();
         }
     }
 
+    private static double[][] getMatrix(Future<double[][]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while parsing the geoid grid");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Couldn't parse the geoid grid", e.getCause());
+        }
+    }
+
     public PointAltitudeInterpolator getInterpolator() {
         return this.interpolator;
     }
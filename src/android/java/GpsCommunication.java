@@ -1,49 +1,115 @@
 package com.cordovapluginfastcam;
 import android.app.Activity;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbManager;
-import android.util.Log;
-
-import com.hoho.android.usbserial.driver.UsbSerialDriver;
-import com.hoho.android.usbserial.driver.UsbSerialPort;
-import com.hoho.android.usbserial.driver.UsbSerialProber;
-import com.hoho.android.usbserial.util.SerialInputOutputManager;
+import android.os.SystemClock;
+
 import com.cordovapluginfastcam.math.PointAltitudeInterpolator;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Communication with GPS
- * device via USB serial.
+ * device via USB serial,
+ * or any other GpsSource.
  * It's a singleton,
  * as only one instance
  * should exist per app
  */
-public class GpsCommunication implements SerialInputOutputManager.Listener {
+public class GpsCommunication {
     private static GpsCommunication instance = null;
     private static final String TAG = "GpsCommunication";
     private static final String USB_PERMISSION = "com.photogram.cmaeratestapp.USB_PERMISSION";
-    private UsbSerialPort port;
-    private SerialInputOutputManager usbIoManager;
-    private NMEA nmeaParser = new NMEA();
-    private GPSPosition currentPosition;
+    /**
+     * Maximum number of receivers
+     * read at the same time
+     */
+    public static final int MAX_RECEIVERS = GpsDataDispatcher.MAX_SOURCES;
+    /**
+     * The receivers currently read. The first
+     * one is the primary receiver (the rover),
+     * its fixes are used for photos and videos.
+     */
+    private volatile GpsReceiver[] receivers = new GpsReceiver[0];
+    /**
+     * Kept across restarts of the receivers,
+     * so they can be handed out before
+     * the receivers are started
+     */
+    private PositionPublisher positionPublisher = new PositionPublisher();
+    private PositionHistory positionHistory = new PositionHistory();
+    /**
+     * Optional recorder for the raw
+     * bytes of the primary receiver
+     */
+    private GpsRecorder recorder;
+    /**
+     * USB ports to read, one receiver each.
+     * Defaults to the first port of the
+     * first device.
+     */
+    private ReceiverConfig[] receiverConfigs = {new ReceiverConfig()};
+    private Protocol protocol = Protocol.NMEA;
     private int baudRate = 115200;
-    private ArrayList<GpsDataCallback> callbacks = new ArrayList<>();
+    /**
+     * Receivers report the speed in knots
+     */
+    private static final double METERS_PER_SECOND_PER_KNOT = 0.514444;
+    private LatencyTracer latencyTracer = new LatencyTracer();
+    /**
+     * UTC time from the primary receiver
+     */
+    private ClockDiscipline clockDiscipline = new ClockDiscipline();
+    private GpsDataDispatcher dispatcher = new GpsDataDispatcher(latencyTracer);
     private BroadcastReceiver broadcastReceiver;
-    private GeoidHeight geoidHeightCorrector;
+    private volatile GeoidHeight geoidHeightCorrector;
+    /**
+     * Geoid models are loaded in the background,
+     * fixes keep flowing (marked as geoidPending)
+     * until the model is ready
+     */
+    private static final ExecutorService geoidModelLoader = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "GeoidModelLoader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private GeoidModel geoidModel;
+    private PointAltitudeInterpolator.Interpolation geoidInterpolation;
+    private Future<GeoidHeight> geoidModelFuture;
+    private volatile boolean geoidModelPending = false;
+    /**
+     * The simulation reports the altitude passed
+     * to simulateGps as is, without correction
+     */
+    private volatile boolean simulating = false;
+    private GeoidModelListener geoidModelListener;
+    /**
+     * Result of the last finished load,
+     * reported to listeners added later
+     */
+    private long geoidModelLoadNanos = -1;
+    private Exception geoidModelError;
     public static enum GeoidModel {alto_adige, italgeo90}
+
+    public interface GeoidModelListener {
+        /**
+         * @param error null if the model was loaded
+         */
+        public void onGeoidModelLoaded(GeoidModel model, long loadTimeNanos, Exception error);
+    }
+    /**
+     * The format the receiver sends:
+     * NMEA 0183 sentences or binary
+     * u-blox UBX NAV-PVT messages
+     */
+    public static enum Protocol {NMEA, UBX}
     /**
      * Alt offset which can be configured
      * from the outside
@@ -56,6 +122,24 @@ public class GpsCommunication implements SerialInputOutputManager.Listener {
      */
     private double altOffset = 0;
 
+    /**
+     * Which USB port a receiver is
+     * connected to and how to read it
+     */
+    public static class ReceiverConfig {
+        /**
+         * Index of the USB serial device
+         * and of its port
+         */
+        public int device = 0;
+        public int port = 0;
+        /**
+         * 0 / null = the configured default
+         */
+        public int baudRate = 0;
+        public Protocol protocol = null;
+    }
+
     private Activity activity;
 
 
@@ -86,28 +170,149 @@ public class GpsCommunication implements SerialInputOutputManager.Listener {
     }
 
     public void configure(int baudRate, double altOffset, GeoidModel geoidModel) {
+        this.configure(baudRate, altOffset, geoidModel, Protocol.NMEA);
+    }
+
+    public void configure(int baudRate, double altOffset, GeoidModel geoidModel, Protocol protocol) {
+        this.configure(baudRate, altOffset, geoidModel, protocol, PointAltitudeInterpolator.Interpolation.BILINEAR);
+    }
+
+    /**
+     * @param interpolation bicubic avoids kinks at the
+     *                      edges of the grid cells,
+     *                      but needs more memory
+     */
+    public void configure(int baudRate, double altOffset, GeoidModel geoidModel, Protocol protocol, PointAltitudeInterpolator.Interpolation interpolation) {
+        this.protocol = protocol;
         if (baudRate != 0) {
             this.baudRate = baudRate;
         }
         this.altOffset = altOffset;
-        String geoidModelFolderName = geoidModel.name();
-
-        PointAltitudeInterpolator.GridCoordinatesType coordinatesType = PointAltitudeInterpolator.GridCoordinatesType.UTM;
+        this.loadGeoidModel(geoidModel, interpolation);
+    }
 
+    /**
+     * The coordinates the model's grid is in
+     */
+    public static PointAltitudeInterpolator.GridCoordinatesType getCoordinatesType(GeoidModel geoidModel) {
         if (geoidModel == GeoidModel.italgeo90) {
-            coordinatesType = PointAltitudeInterpolator.GridCoordinatesType.WGS84;
+            return PointAltitudeInterpolator.GridCoordinatesType.WGS84;
         }
+        return PointAltitudeInterpolator.GridCoordinatesType.UTM;
+    }
 
-        try {
-            this.geoidHeightCorrector = new GeoidHeight(
-                    this.activity.getAssets().open(geoidModelFolderName + "/grid_x.txt"),
-                    this.activity.getAssets().open(geoidModelFolderName + "/grid_y.txt"),
-                    this.activity.getAssets().open(geoidModelFolderName + "/grid_h.txt"),
-                    coordinatesType
-            );
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Switches to the given model. Models loaded
+     * before are taken from the cache right away,
+     * others are loaded in the background.
+     * Fixes being corrected meanwhile keep
+     * using the model they started with.
+     */
+    private void loadGeoidModel(GeoidModel geoidModel, PointAltitudeInterpolator.Interpolation interpolation) {
+        PointAltitudeInterpolator.GridCoordinatesType coordinatesType = getCoordinatesType(geoidModel);
+        GeoidHeight cached = GeoidHeight.getCached(geoidModel.name(), coordinatesType, interpolation);
+        synchronized (this) {
+            if (geoidModel == this.geoidModel && interpolation == this.geoidInterpolation
+                    && this.geoidModelFuture != null && this.geoidModelError == null) {
+                return;
+            }
+            this.geoidModel = geoidModel;
+            this.geoidInterpolation = interpolation;
+            if (cached != null) {
+                FutureTask<GeoidHeight> loaded = new FutureTask<>(() -> cached);
+                loaded.run();
+                this.geoidModelFuture = loaded;
+            } else {
+                // Set before the swap, so no fix is left
+                // uncorrected without being marked
+                this.geoidModelPending = true;
+                this.geoidHeightCorrector = null;
+                this.geoidModelLoadNanos = -1;
+                this.geoidModelError = null;
+
+                long startNanos = SystemClock.elapsedRealtimeNanos();
+                this.geoidModelFuture = geoidModelLoader.submit(() -> {
+                    GeoidHeight geoidHeight = null;
+                    Exception error = null;
+                    try {
+                        geoidHeight = GeoidHeight.load(this.activity, geoidModel.name(), coordinatesType, interpolation);
+                        if (geoidHeight.getInterpolator() == null) {
+                            error = new IOException("Geoid model " + geoidModel + " is not in grid form");
+                            geoidHeight = null;
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        error = e;
+                    }
+                    this.onGeoidModelLoaded(geoidModel, interpolation, geoidHeight, SystemClock.elapsedRealtimeNanos() - startNanos, error);
+                    return geoidHeight;
+                });
+                return;
+            }
+        }
+        this.onGeoidModelLoaded(geoidModel, interpolation, cached, 0, null);
+    }
+
+    private void onGeoidModelLoaded(GeoidModel geoidModel, PointAltitudeInterpolator.Interpolation interpolation, GeoidHeight geoidHeight, long loadTimeNanos, Exception error) {
+        GeoidModelListener listener;
+        synchronized (this) {
+            if (geoidModel != this.geoidModel || interpolation != this.geoidInterpolation) {
+                // Another model was configured meanwhile
+                return;
+            }
+            // The receivers' threads pick up
+            // the new model with their next fix
+            this.geoidHeightCorrector = geoidHeight;
+            this.geoidModelLoadNanos = loadTimeNanos;
+            this.geoidModelError = error;
+            this.geoidModelPending = false;
+            listener = this.geoidModelListener;
+        }
+        if (error != null) {
+            error.printStackTrace();
+        }
+        if (listener != null) {
+            listener.onGeoidModelLoaded(geoidModel, loadTimeNanos, error);
+        }
+    }
+
+    /**
+     * Called once the configured model is loaded,
+     * right away if that already happened
+     */
+    public void setGeoidModelListener(GeoidModelListener listener) {
+        GeoidModel loadedModel = null;
+        long loadTimeNanos;
+        Exception error;
+        synchronized (this) {
+            this.geoidModelListener = listener;
+            loadTimeNanos = this.geoidModelLoadNanos;
+            error = this.geoidModelError;
+            if (this.geoidModelFuture != null && !this.geoidModelPending) {
+                loadedModel = this.geoidModel;
+            }
+        }
+        if (listener != null && loadedModel != null) {
+            listener.onGeoidModelLoaded(loadedModel, loadTimeNanos, error);
+        }
+    }
+
+    /**
+     * Completes with the configured model,
+     * or null if it couldn't be loaded
+     */
+    public synchronized Future<GeoidHeight> getGeoidModel() {
+        return this.geoidModelFuture;
+    }
+
+    /**
+     * Sets the USB ports initialize() reads,
+     * e.g. a rover and a heading receiver
+     */
+    public void setReceivers(ReceiverConfig[] receiverConfigs) {
+        if (receiverConfigs.length == 0 || receiverConfigs.length > MAX_RECEIVERS) {
+            throw new IllegalArgumentException("Between 1 and " + MAX_RECEIVERS + " receivers are supported");
         }
+        this.receiverConfigs = receiverConfigs;
     }
 
     public void initialize(boolean simulate) {
@@ -119,111 +324,233 @@ public class GpsCommunication implements SerialInputOutputManager.Listener {
     }
 
     public void initialize() {
-        // Find all available drivers from attached devices.
-        UsbManager manager = (UsbManager) this.activity.getSystemService(Context.USB_SERVICE);
-        List<UsbSerialDriver> availableDrivers = UsbSerialProber.getDefaultProber().findAllDrivers(manager);
-        if (availableDrivers.isEmpty()) {
-            Log.d(TAG, "No USB devices found!");
-            return;
+        GpsSource[] sources = new GpsSource[this.receiverConfigs.length];
+        Protocol[] protocols = new Protocol[this.receiverConfigs.length];
+        for (int i = 0; i < sources.length; i += 1) {
+            ReceiverConfig config = this.receiverConfigs[i];
+            int baudRate = config.baudRate != 0 ? config.baudRate : this.baudRate;
+            sources[i] = new UsbSerialSource(this.activity, baudRate, USB_PERMISSION, config.device, config.port);
+            protocols[i] = config.protocol != null ? config.protocol : this.protocol;
         }
+        this.startSources(sources, protocols);
+    }
 
-        // Open a connection to the first available driver.
-        UsbSerialDriver driver = availableDrivers.get(0);
-        UsbDeviceConnection connection = manager.openDevice(driver.getDevice());
-        if (connection == null) {
-            Log.d(TAG, "Need to request permission!");
-            PendingIntent pendingIntent = PendingIntent.getBroadcast(this.activity, 0, new Intent(this.USB_PERMISSION), 0);
-            // and a filter on the permission we ask
-            IntentFilter filter = new IntentFilter();
-            filter.addAction(this.USB_PERMISSION);
-            manager.requestPermission(driver.getDevice(), pendingIntent);
-            Log.d(TAG, "Permission requested.");
-            return;
-        }
+    /**
+     * Replays a log recorded from the receiver.
+     *
+     * @param speed multiple of the recorded timing,
+     *              0 = as fast as possible
+     */
+    public void replay(File log, double speed) {
+        this.startSource(new ReplayGpsSource(log, speed));
+    }
 
-         port = driver.getPorts().get(0); // Most devices have just one port (port 0)
-        try {
-            port.open(connection);
-            port.setParameters(this.baudRate, 8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Stops the current receivers and
+     * starts reading from the given source
+     */
+    public void startSource(GpsSource source) {
+        this.startSources(new GpsSource[]{source}, new Protocol[]{this.protocol});
+    }
 
-        usbIoManager = new SerialInputOutputManager(port, this);
-        Executors.newSingleThreadExecutor().submit(usbIoManager);
+    /**
+     * Stops the current receivers and starts
+     * one receiver per source, each reading
+     * on its own thread. Their fixes are
+     * tagged with the index of their source.
+     */
+    public synchronized void startSources(GpsSource[] sources, Protocol[] protocols) {
+        this.startSources(sources, protocols, false);
     }
 
-    @Override
-    public void onNewData(byte[] bytes) {
-        try {
-            String strData = new String(bytes, StandardCharsets.UTF_8);
-            this.currentPosition = nmeaParser.parse(strData, "GGA");
-            // Interpolate geoid height and add it
-            if (this.currentPosition.altitude > 0) {
-                double altOffsetInMeters = this.altOffset != 0 ? this.altOffset / 100 : 0;
-                double geoidH = this.geoidHeightCorrector.getInterpolator().interpolateGeoidHeight(this.currentPosition.lat, this.currentPosition.lon);
-                this.currentPosition.altitude = this.currentPosition.origAltitude + this.currentPosition.geoidSeparator - geoidH - altOffsetInMeters;
-                this.currentPosition.interpolatedGeoid = geoidH;
-            }
-            this.triggerCallbacks();
-        } catch (NullPointerException e) {
-            Log.d(TAG, "NMEA parse error, continue...");
+    private synchronized void startSources(GpsSource[] sources, Protocol[] protocols, boolean simulating) {
+        this.close();
+        this.simulating = simulating;
+        GpsReceiver[] receivers = new GpsReceiver[Math.min(sources.length, MAX_RECEIVERS)];
+        for (int i = 0; i < receivers.length; i += 1) {
+            boolean primary = i == 0;
+            receivers[i] = new GpsReceiver(i, this, sources[i], protocols[i],
+                    primary ? this.positionPublisher : new PositionPublisher(),
+                    primary ? this.positionHistory : new PositionHistory(),
+                    this.latencyTracer);
+        }
+        if (receivers.length > 0) {
+            receivers[0].setRecorder(this.recorder);
+        }
+        this.receivers = receivers;
+        for (GpsReceiver receiver : receivers) {
+            receiver.start();
         }
     }
 
-    private void triggerCallbacks() {
-        for (GpsDataCallback cb : this.callbacks) {
-            cb.onData(this.currentPosition);
+    /**
+     * Starts recording every byte the primary
+     * receiver sends to the given file, which
+     * can later be passed to replay
+     */
+    public synchronized void startRecording(File file) throws IOException {
+        this.stopRecording();
+        this.recorder = new GpsRecorder(file);
+        GpsReceiver[] receivers = this.receivers;
+        if (receivers.length > 0) {
+            receivers[0].setRecorder(this.recorder);
         }
     }
 
-    @Override
-    public void onRunError(Exception e) {
-        e.printStackTrace();
+    /**
+     * @return the finished recording,
+     * or null if there was none
+     */
+    public synchronized GpsRecorder stopRecording() throws IOException {
+        GpsRecorder recorder = this.recorder;
+        if (recorder == null) {
+            return null;
+        }
+        this.recorder = null;
+        GpsReceiver[] receivers = this.receivers;
+        if (receivers.length > 0) {
+            receivers[0].setRecorder(null);
+        }
+        recorder.stop();
+        return recorder;
     }
 
-    public void close() {
-        if (port != null) {
-            try {
-                port.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Interpolates the geoid height and
+     * corrects the altitude with it.
+     * Called on the receivers' threads.
+     */
+    void correctAltitude(GPSPosition position) {
+        GeoidHeight geoidHeightCorrector = this.geoidHeightCorrector;
+        // Until the model is loaded, the altitude
+        // uses the receiver's own geoid separation
+        position.geoidPending = geoidHeightCorrector == null && this.geoidModelPending && !this.simulating;
+        if (this.simulating) {
+            return;
+        }
+        if (position.altitude > 0 && geoidHeightCorrector != null) {
+            double altOffsetInMeters = this.altOffset != 0 ? this.altOffset / 100 : 0;
+            PointAltitudeInterpolator interpolator = geoidHeightCorrector.getInterpolator();
+            // Tiled models load the tiles ahead
+            interpolator.prefetch(position.lat, position.lon, position.dir, position.velocity * METERS_PER_SECOND_PER_KNOT);
+            double geoidH = interpolator.interpolateGeoidHeight(position.lat, position.lon);
+            if (Double.isNaN(geoidH)) {
+                // Outside of the geoid model, keep
+                // the altitude of the receiver
+                return;
             }
+            position.altitude = position.origAltitude + position.geoidSeparator - geoidH - altOffsetInMeters;
+            position.interpolatedGeoid = geoidH;
+        }
+    }
+
+    /**
+     * Hands a published fix of any
+     * receiver to the listeners
+     */
+    void dispatch(GPSPosition position) {
+        this.dispatcher.dispatch(position);
+    }
+
+    public synchronized void close() {
+        for (GpsReceiver receiver : this.receivers) {
+            receiver.stop();
         }
+        this.receivers = new GpsReceiver[0];
     }
 
+    /**
+     * Feeds simulated NMEA sentences
+     * through the normal parsing path.
+     * Like before, their altitude is the
+     * altOffset given to configure and
+     * isn't geoid corrected.
+     */
     public void simulateGps() {
-        GPSPosition simulatePos = new GPSPosition();
-        simulatePos.fixed = true;
-        simulatePos.quality = 4;
-        simulatePos.altitude = this.altOffset;
+        this.startSources(new GpsSource[]{new SimulatedGpsSource(this.altOffset)}, new Protocol[]{Protocol.NMEA}, true);
+    }
 
-        GpsCommunication g = this;
+    /**
+     * The receivers currently read,
+     * the primary one first
+     */
+    public GpsReceiver[] getReceivers() {
+        return this.receivers;
+    }
 
-        Random rand = new Random();
+    /**
+     * Returns the latest fix. It must not be
+     * modified, but stays unchanged, so it
+     * can be kept.
+     */
+    public GPSPosition getCurrentPosition() {
+        return this.positionPublisher.getLatest();
+    }
 
-        new Timer().scheduleAtFixedRate(new TimerTask(){
-            @Override
-            public void run(){
-                float addToLonRandom = rand.nextFloat() / 10;
-                float addToLatRandom = rand.nextFloat() / 10;
-                simulatePos.lon = 11.657244 + addToLonRandom;
-                simulatePos.lat = 46.717705 + addToLatRandom;
+    /**
+     * Copies the latest fix into the given
+     * position, without ever mixing
+     * values of two fixes.
+     *
+     * @return false if there is no fix yet
+     */
+    public boolean copyCurrentPosition(GPSPosition into) {
+        return this.positionPublisher.copyLatest(into);
+    }
 
+    /**
+     * Writes the position the receiver had at
+     * the given SystemClock.elapsedRealtimeNanos
+     * time into the given position, interpolated
+     * between the fixes around it.
+     *
+     * @return false if no fix is known around that time
+     */
+    public boolean getPositionAt(long elapsedRealtimeNanos, GPSPosition into) {
+        return this.positionHistory.interpolate(elapsedRealtimeNanos, into);
+    }
 
-                g.currentPosition = simulatePos;
-                double geoidH = g.geoidHeightCorrector.getInterpolator().interpolateGeoidHeight(g.currentPosition.lat, g.currentPosition.lon);
-                Log.d(TAG, "Geoid H: " + geoidH);
-                g.triggerCallbacks();
-            }
-        }, 0, 1000 / 12);
+    /**
+     * Clock disciplined by the UTC
+     * time of the primary receiver
+     */
+    public ClockDiscipline getClockDiscipline() {
+        return this.clockDiscipline;
     }
 
-    public GPSPosition getCurrentPosition() {
-        return this.currentPosition;
+    /**
+     * Per-stage latencies of the
+     * fixes delivered so far
+     */
+    public LatencyTracer getLatencyTracer() {
+        return this.latencyTracer;
+    }
+
+    public PositionHistory getPositionHistory() {
+        return this.positionHistory;
     }
 
+    /**
+     * Listeners are called on a background
+     * thread, and only with the latest fix
+     * if they can't keep up. The position
+     * passed to them is only valid during
+     * the call.
+     */
     public void addEventListener(GpsDataCallback cb) {
-        this.callbacks.add(cb);
+        this.dispatcher.subscribe(cb);
+    }
+
+    /**
+     * @param weak if true, the listener is removed
+     *             automatically once it is garbage
+     *             collected
+     */
+    public void addEventListener(GpsDataCallback cb, boolean weak) {
+        this.dispatcher.subscribe(cb, weak);
+    }
+
+    public void removeEventListener(GpsDataCallback cb) {
+        this.dispatcher.unsubscribe(cb);
     }
 }
@@ -0,0 +1,185 @@
+package com.cordovapluginfastcam;
+
+import android.os.SystemClock;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Delivers fixes to the GpsDataCallbacks
+ * off the threads reading the receivers.
+ *
+ * Every listener is served by its own
+ * serial slot on a shared thread pool:
+ * it never runs concurrently with itself,
+ * and if it is still busy when new fixes
+ * arrive, only the latest one of each
+ * receiver is delivered next (latest wins).
+ * A slow listener therefore neither delays
+ * the serial reads nor the other listeners.
+ *
+ * Fixes of several receivers waiting for
+ * a listener are delivered in the order
+ * their data arrived.
+ */
+public class GpsDataDispatcher {
+    /**
+     * Maximum number of receivers,
+     * see GPSPosition.source
+     */
+    public static final int MAX_SOURCES = 8;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "GpsDataDispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final LatencyTracer latencyTracer;
+
+    public GpsDataDispatcher(LatencyTracer latencyTracer) {
+        this.latencyTracer = latencyTracer;
+    }
+
+    private class Subscription implements Runnable {
+        private final GpsDataCallback callback;
+        private final WeakReference<GpsDataCallback> weakCallback;
+        /**
+         * Latest undelivered fix per receiver
+         */
+        private final AtomicReferenceArray<GPSPosition> pending = new AtomicReferenceArray<>(MAX_SOURCES);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        /**
+         * The listener gets its own copies, as the
+         * published snapshots may be recycled
+         * while a slow listener still reads them
+         */
+        private final GPSPosition[] delivered = new GPSPosition[MAX_SOURCES];
+
+        Subscription(GpsDataCallback callback, boolean weak) {
+            this.callback = weak ? null : callback;
+            this.weakCallback = weak ? new WeakReference<>(callback) : null;
+            for (int i = 0; i < MAX_SOURCES; i += 1) {
+                delivered[i] = new GPSPosition();
+            }
+        }
+
+        GpsDataCallback getCallback() {
+            return callback != null ? callback : weakCallback.get();
+        }
+
+        void offer(GPSPosition position) {
+            pending.set(position.source, position);
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        private boolean hasPending() {
+            for (int i = 0; i < MAX_SOURCES; i += 1) {
+                if (pending.get(i) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            GpsDataCallback cb = getCallback();
+            if (cb == null) {
+                // Weakly referenced listener was collected
+                subscriptions.remove(this);
+                return;
+            }
+
+            int count = 0;
+            for (int i = 0; i < MAX_SOURCES; i += 1) {
+                GPSPosition position = pending.getAndSet(i, null);
+                if (position != null && PositionPublisher.copy(position, delivered[count])) {
+                    count += 1;
+                }
+            }
+            sortByArrival(delivered, count);
+
+            for (int i = 0; i < count; i += 1) {
+                GPSPosition position = delivered[i];
+                position.dispatchedNanos = SystemClock.elapsedRealtimeNanos();
+                latencyTracer.record(LatencyTracer.Stage.DISPATCH, position.correctedNanos, position.dispatchedNanos);
+                try {
+                    cb.onData(position);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            scheduled.set(false);
+            // A fix may have arrived after getAndSet
+            // but before scheduled was reset
+            if (hasPending() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+    }
+
+    /**
+     * Insertion sort, there are only
+     * a handful of receivers
+     */
+    static void sortByArrival(GPSPosition[] positions, int count) {
+        for (int i = 1; i < count; i += 1) {
+            GPSPosition position = positions[i];
+            int j = i - 1;
+            while (j >= 0 && positions[j].arrivalNanos > position.arrivalNanos) {
+                positions[j + 1] = positions[j];
+                j -= 1;
+            }
+            positions[j + 1] = position;
+        }
+    }
+
+    /**
+     * The position passed to the callback
+     * is only valid during the call.
+     */
+    public void subscribe(GpsDataCallback callback) {
+        this.subscribe(callback, false);
+    }
+
+    /**
+     * @param weak only keep a weak reference to
+     *             the callback, so it is unsubscribed
+     *             automatically once it is garbage
+     *             collected (e.g. an Activity)
+     */
+    public void subscribe(GpsDataCallback callback, boolean weak) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.getCallback() == callback) {
+                return;
+            }
+        }
+        subscriptions.add(new Subscription(callback, weak));
+    }
+
+    public void unsubscribe(GpsDataCallback callback) {
+        for (Subscription subscription : subscriptions) {
+            GpsDataCallback cb = subscription.getCallback();
+            if (cb == null || cb == callback) {
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * Hands a published position to all
+     * listeners. Never blocks.
+     */
+    public void dispatch(GPSPosition position) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(position);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.cordovapluginfastcam;
+
+/**
+ * A decoder for the byte stream
+ * of a GPS receiver. Implementations
+ * keep their state between calls, so
+ * messages may be split across
+ * several USB reads.
+ */
+public interface GpsProtocolParser {
+
+    public interface EpochListener {
+        /**
+         * Called once per receiver epoch,
+         * with the complete position
+         * of that epoch
+         */
+        public void onEpoch(GPSPosition position);
+    }
+
+    public void setEpochListener(EpochListener epochListener);
+
+    /**
+     * Feeds the next length bytes
+     * of data into the parser
+     */
+    public void parse(byte[] data, int length);
+}
@@ -0,0 +1,121 @@
+package com.cordovapluginfastcam;
+
+import android.os.SystemClock;
+
+import com.hoho.android.usbserial.util.SerialInputOutputManager;
+
+/**
+ * One receiver connected to GpsCommunication,
+ * e.g. the rover or a heading receiver.
+ * Every receiver reads on its own thread
+ * and has its own parser state, snapshots
+ * and history, so receivers never wait for
+ * each other. Only the geoid correction and
+ * the dispatcher are shared, and both don't lock.
+ */
+public class GpsReceiver implements SerialInputOutputManager.Listener {
+    private final int source;
+    private final GpsCommunication communication;
+    private final GpsSource gpsSource;
+    private final GpsProtocolParser parser;
+    /**
+     * The parsers reuse one position
+     * instance, so every fix is copied
+     * to a pooled snapshot before other
+     * threads get to see it
+     */
+    private final PositionPublisher positionPublisher;
+    private final PositionHistory positionHistory;
+    private final LatencyTracer latencyTracer;
+    /**
+     * When the chunk which completed
+     * the current fix arrived
+     */
+    private long chunkArrivalNanos = 0;
+    /**
+     * Optional recorder for the
+     * raw receiver bytes
+     */
+    private volatile GpsRecorder recorder;
+
+    /**
+     * @param source tag of the fixes of this receiver,
+     *               its index in GpsCommunication
+     */
+    GpsReceiver(int source, GpsCommunication communication, GpsSource gpsSource, GpsCommunication.Protocol protocol,
+                PositionPublisher positionPublisher, PositionHistory positionHistory, LatencyTracer latencyTracer) {
+        this.source = source;
+        this.communication = communication;
+        this.gpsSource = gpsSource;
+        this.positionPublisher = positionPublisher;
+        this.positionHistory = positionHistory;
+        this.latencyTracer = latencyTracer;
+        this.parser = protocol == GpsCommunication.Protocol.UBX ? new UBX() : new NMEA();
+        this.parser.setEpochListener(this::onPosition);
+    }
+
+    void start() {
+        this.gpsSource.start(this);
+    }
+
+    void stop() {
+        this.gpsSource.stop();
+    }
+
+    @Override
+    public void onNewData(byte[] bytes) {
+        chunkArrivalNanos = SystemClock.elapsedRealtimeNanos();
+        parser.parse(bytes, bytes.length);
+        // Recorded after parsing, so it never
+        // delays the delivery of a fix
+        GpsRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.record(bytes, bytes.length, chunkArrivalNanos);
+        }
+    }
+
+    @Override
+    public void onRunError(Exception e) {
+        e.printStackTrace();
+    }
+
+    /**
+     * Called by the parser once per
+     * receiver epoch
+     */
+    private void onPosition(GPSPosition parsedPosition) {
+        long parsedNanos = SystemClock.elapsedRealtimeNanos();
+        GPSPosition position = this.positionPublisher.acquire();
+        position.copyFrom(parsedPosition);
+        position.source = this.source;
+        position.arrivalNanos = this.chunkArrivalNanos;
+        position.parsedNanos = parsedNanos;
+        position.dispatchedNanos = 0;
+        this.communication.correctAltitude(position);
+        position.correctedNanos = SystemClock.elapsedRealtimeNanos();
+        this.positionPublisher.publish(position);
+        this.positionHistory.add(position, this.chunkArrivalNanos);
+        if (this.source == 0 && position.fixed) {
+            this.communication.getClockDiscipline().addSample(position.time, position.arrivalNanos);
+        }
+        this.latencyTracer.record(LatencyTracer.Stage.PARSE, position.arrivalNanos, position.parsedNanos);
+        this.latencyTracer.record(LatencyTracer.Stage.CORRECTION, position.parsedNanos, SystemClock.elapsedRealtimeNanos());
+        this.communication.dispatch(position);
+    }
+
+    void setRecorder(GpsRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public int getSource() {
+        return this.source;
+    }
+
+    public PositionPublisher getPositionPublisher() {
+        return this.positionPublisher;
+    }
+
+    public PositionHistory getPositionHistory() {
+        return this.positionHistory;
+    }
+}
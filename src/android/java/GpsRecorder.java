@@ -0,0 +1,212 @@
+package com.cordovapluginfastcam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every chunk the receiver sent,
+ * together with its arrival time, in the
+ * log format ReplayGpsSource reads.
+ *
+ * record() only copies the chunk into a
+ * ring buffer and never blocks, a background
+ * thread drains the ring into a preallocated,
+ * memory-mapped file. If the writer falls
+ * behind so far that the ring is full,
+ * chunks are dropped and counted instead of
+ * delaying the serial reads. So are chunks
+ * arriving once stop() began.
+ *
+ * There must only be one thread calling
+ * record().
+ */
+public class GpsRecorder {
+    private static final int RING_CAPACITY = 1 << 20;
+    /**
+     * The file grows in steps of this size,
+     * a bit more than three minutes at 921600 baud
+     */
+    private static final long MAP_REGION_SIZE = 16L << 20;
+    private static final long DRAIN_INTERVAL_NANOS = 5000000L;
+    /**
+     * Set in head by the final drain,
+     * records can't be published after it
+     */
+    private static final long CLOSED = 1L << 62;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private MappedByteBuffer region;
+    private long regionStart = 0;
+
+    private final byte[] ring = new byte[RING_CAPACITY];
+    private final byte[] header = new byte[ReplayGpsSource.RECORD_HEADER_LENGTH];
+    /**
+     * Total bytes written to / read from
+     * the ring. Only the producer advances
+     * head, only the drain thread writes tail
+     * and sets CLOSED in head.
+     */
+    private final AtomicLong head = new AtomicLong(0);
+    private volatile long tail = 0;
+    private volatile long droppedChunks = 0;
+    private volatile boolean running = true;
+    private final Thread drainThread;
+    private IOException writeError;
+
+    public GpsRecorder(File file) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.randomAccessFile.setLength(0);
+        this.channel = this.randomAccessFile.getChannel();
+        this.mapRegion(0);
+        this.region.put(ReplayGpsSource.MAGIC);
+
+        this.drainThread = new Thread(this::drainLoop, "GpsRecorder");
+        this.drainThread.setDaemon(true);
+        this.drainThread.start();
+    }
+
+    /**
+     * Called from the serial reader thread,
+     * copies the chunk and returns right away.
+     * Chunks longer than the replay accepts are
+     * split into several records with the same
+     * arrival time.
+     */
+    public void record(byte[] data, int length, long arrivalNanos) {
+        long start = this.head.get();
+        if ((start & CLOSED) != 0) {
+            this.droppedChunks += 1;
+            return;
+        }
+        int records = Math.max(1, (length + ReplayGpsSource.MAX_CHUNK_LENGTH - 1) / ReplayGpsSource.MAX_CHUNK_LENGTH);
+        long h = start;
+        if (RING_CAPACITY - (h - this.tail) < (long) records * this.header.length + length) {
+            this.droppedChunks += 1;
+            return;
+        }
+        for (int i = 0; i < 8; i += 1) {
+            this.header[i] = (byte) (arrivalNanos >>> (i * 8));
+        }
+        int offset = 0;
+        do {
+            int recordLength = Math.min(length - offset, ReplayGpsSource.MAX_CHUNK_LENGTH);
+            for (int i = 0; i < 4; i += 1) {
+                this.header[8 + i] = (byte) (recordLength >>> (i * 8));
+            }
+            this.copyToRing(h, this.header, 0, this.header.length);
+            this.copyToRing(h + this.header.length, data, offset, recordLength);
+            h += this.header.length + recordLength;
+            offset += recordLength;
+        } while (offset < length);
+        // Publishes the records to the drain thread, fails
+        // if the final drain already took place
+        if (!this.head.compareAndSet(start, h)) {
+            this.droppedChunks += 1;
+        }
+    }
+
+    private void copyToRing(long position, byte[] src, int srcOffset, int length) {
+        int offset = (int) (position % RING_CAPACITY);
+        int first = Math.min(length, RING_CAPACITY - offset);
+        System.arraycopy(src, srcOffset, this.ring, offset, first);
+        System.arraycopy(src, srcOffset + first, this.ring, 0, length - first);
+    }
+
+    private void drainLoop() {
+        try {
+            while (this.running) {
+                this.drain(this.head.get());
+                LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+            }
+            this.drain(this.close());
+        } catch (IOException e) {
+            this.writeError = e;
+            this.running = false;
+            this.close();
+        }
+    }
+
+    /**
+     * Stops further records from being published
+     *
+     * @return the final head
+     */
+    private long close() {
+        while (true) {
+            long h = this.head.get();
+            if ((h & CLOSED) != 0 || this.head.compareAndSet(h, h | CLOSED)) {
+                return h & ~CLOSED;
+            }
+        }
+    }
+
+    private void drain(long head) throws IOException {
+        long t = this.tail;
+        long available = head - t;
+        while (available > 0) {
+            int offset = (int) (t % RING_CAPACITY);
+            int length = (int) Math.min(available, RING_CAPACITY - offset);
+            if (this.region.remaining() == 0) {
+                this.mapRegion(this.regionStart + MAP_REGION_SIZE);
+            }
+            length = Math.min(length, this.region.remaining());
+            this.region.put(this.ring, offset, length);
+            t += length;
+            available -= length;
+            // Frees the space for the producer
+            this.tail = t;
+        }
+    }
+
+    private void mapRegion(long start) throws IOException {
+        this.randomAccessFile.setLength(start + MAP_REGION_SIZE);
+        this.region = this.channel.map(FileChannel.MapMode.READ_WRITE, start, MAP_REGION_SIZE);
+        this.regionStart = start;
+    }
+
+    /**
+     * Writes the remaining chunks, cuts off
+     * the preallocated space and closes
+     * the file
+     *
+     * @return the number of bytes written
+     */
+    public long stop() throws IOException {
+        this.running = false;
+        try {
+            this.drainThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long length = this.regionStart + this.region.position();
+        this.region.force();
+        this.region = null;
+        this.channel.truncate(length);
+        this.randomAccessFile.close();
+        if (this.writeError != null) {
+            throw this.writeError;
+        }
+        return length;
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Number of chunks lost because the file
+     * writes fell behind or the recorder
+     * was already stopping
+     */
+    public long getDroppedChunks() {
+        return this.droppedChunks;
+    }
+}
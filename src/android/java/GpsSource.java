@@ -0,0 +1,21 @@
+package com.cordovapluginfastcam;
+
+import com.hoho.android.usbserial.util.SerialInputOutputManager;
+
+/**
+ * Where the receiver's bytes come from:
+ * a USB serial port, a simulation or a
+ * recorded log. Every source feeds the
+ * same onNewData path, so parsing, geoid
+ * correction and dispatch behave the same
+ * no matter where the data comes from.
+ */
+public interface GpsSource {
+    /**
+     * Starts delivering bytes to the
+     * listener, on a thread of the source
+     */
+    public void start(SerialInputOutputManager.Listener listener);
+
+    public void stop();
+}
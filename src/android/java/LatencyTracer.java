@@ -0,0 +1,181 @@
+package com.cordovapluginfastcam;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency distributions of the stages a
+ * fix passes on its way from the USB
+ * chunk to the JS callback, based on the
+ * nanotime stamps in GPSPosition.
+ *
+ * Every stage is a log-linear histogram
+ * with 8 buckets per power of two
+ * (at most 12.5% error) over microseconds.
+ * Recording is lock-free and doesn't
+ * allocate, so it can stay enabled.
+ */
+public class LatencyTracer {
+    public static enum Stage {
+        /**
+         * USB chunk arrival until the
+         * parser completed the fix
+         */
+        PARSE,
+        /**
+         * Geoid correction and publishing
+         */
+        CORRECTION,
+        /**
+         * Waiting for the listener's thread
+         */
+        DISPATCH,
+        /**
+         * Listener until the fix is handed
+         * to the Cordova bridge, including
+         * rate limiting
+         */
+        BRIDGE,
+        /**
+         * USB chunk arrival until the
+         * fix is handed to the bridge
+         */
+        TOTAL
+    }
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Values up to 2^36 µs (~19 h)
+     */
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+
+    private static class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sumMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long micros) {
+            buckets.incrementAndGet(bucketIndex(micros));
+            count.incrementAndGet();
+            sumMicros.addAndGet(micros);
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+                // retry
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i += 1) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sumMicros.set(0);
+            maxMicros.set(0);
+        }
+
+        /**
+         * Upper bound of the bucket holding
+         * the given fraction of all values
+         */
+        long percentile(double fraction, long total) {
+            long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i += 1) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(bucketUpperBound(i), maxMicros.get());
+                }
+            }
+            return maxMicros.get();
+        }
+    }
+
+    public LatencyTracer() {
+        for (int i = 0; i < histograms.length; i += 1) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Records the time between two
+     * stamps. Missing stamps (0) and
+     * negative durations are ignored.
+     */
+    public void record(Stage stage, long fromNanos, long toNanos) {
+        if (fromNanos == 0 || toNanos == 0 || toNanos < fromNanos) {
+            return;
+        }
+        histograms[stage.ordinal()].record((toNanos - fromNanos) / 1000);
+    }
+
+    /**
+     * Records all stages of a fix which
+     * just got handed to the bridge
+     */
+    public void recordBridgeSend(GPSPosition position, long sentNanos) {
+        this.record(Stage.BRIDGE, position.dispatchedNanos, sentNanos);
+        this.record(Stage.TOTAL, position.arrivalNanos, sentNanos);
+    }
+
+    public void reset() {
+        for (Histogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Count, mean, max and percentiles
+     * of every stage in microseconds
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        try {
+            for (Stage stage : Stage.values()) {
+                Histogram histogram = histograms[stage.ordinal()];
+                long count = histogram.count.get();
+                JSONObject stats = new JSONObject();
+                stats.put("count", count);
+                if (count > 0) {
+                    stats.put("mean", histogram.sumMicros.get() / (double) count);
+                    stats.put("p50", histogram.percentile(0.5, count));
+                    stats.put("p90", histogram.percentile(0.9, count));
+                    stats.put("p99", histogram.percentile(0.99, count));
+                    stats.put("max", histogram.maxMicros.get());
+                }
+                json.put(stage.name().toLowerCase(), stats);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return json;
+    }
+
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -1,88 +1,180 @@
 package com.cordovapluginfastcam;
 
-import android.util.Log;
-
-
-import java.util.HashMap;
-import java.util.Map;
-
 /**
- * From: https://gist.github.com/javisantana/1326141/30d6b5b603fa113d7a17bfcc0a8aaa25a107d581
+ * Incremental NMEA 0183 parser.
+ * Consumes raw bytes as they
+ * arrive from the serial port,
+ * so sentences which are split
+ * across two USB reads are
+ * reassembled instead of dropped.
+ * Fields are never turned into
+ * Strings: the parser keeps the
+ * offsets of each field in its
+ * sentence buffer and decodes
+ * numbers directly from the bytes.
+ *
+ * Receivers send several sentences per
+ * epoch (GGA, RMC, VTG, ...). All of them
+ * are merged into one position, which is
+ * handed to the EpochListener once per
+ * epoch.
+ *
+ * Originally based on: https://gist.github.com/javisantana/1326141/30d6b5b603fa113d7a17bfcc0a8aaa25a107d581
  */
-public class NMEA {
+public class NMEA implements GpsProtocolParser {
 
     interface SentenceParser {
-        public boolean parse(String [] tokens, GPSPosition position);
+        public boolean parse(GPSPosition position);
     }
 
-    // utils
-    static double Latitude2Decimal(String lat, String NS) {
-        if (lat.length() < 2) return 0f;
-        double med = Double.parseDouble(lat.substring(2))/60.0f;
-        med +=  Double.parseDouble(lat.substring(0, 2));
-        if(NS.startsWith("S")) {
-            med = -med;
-        }
-        return med;
-    }
+    /**
+     * NMEA 0183 limits sentences to 82 characters,
+     * some receivers exceed that for proprietary
+     * sentences, so leave some room.
+     */
+    private static final int MAX_SENTENCE_LENGTH = 128;
+    private static final int MAX_FIELDS = 40;
+    /**
+     * More digits than that can't be
+     * represented exactly in a long
+     */
+    private static final int MAX_DIGITS = 18;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
 
-    static double Longitude2Decimal(String lon, String WE) {
-        if (lon.length() < 3) return 0f;
-        double med = Double.parseDouble(lon.substring(3))/60.0f;
-        med +=  Double.parseDouble(lon.substring(0, 3));
-        // double med = Double.parseDouble(lon);
-        if(WE.startsWith("W")) {
-            med = -med;
-        }
-        return med;
-    }
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_BODY = 1;
+    private static final int STATE_CHECKSUM_HIGH = 2;
+    private static final int STATE_CHECKSUM_LOW = 3;
+
+    /**
+     * Bytes of the current sentence,
+     * without the leading '$' and
+     * the trailing '*hh'
+     */
+    private final byte[] sentence = new byte[MAX_SENTENCE_LENGTH];
+    private int sentenceLength = 0;
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int fieldCount = 0;
+    private int state = STATE_IDLE;
+    private int calculatedChecksum = 0;
+    private int receivedChecksum = 0;
+    /**
+     * Set by the field decoders if a
+     * field doesn't contain what
+     * the sentence parser expected
+     */
+    private boolean fieldError = false;
+
+    /**
+     * UTC time (hhmmss.ss) of the epoch
+     * currently being assembled, NaN if the
+     * epoch's first sentences carried no time
+     */
+    private double epochTime = Double.NaN;
+    /**
+     * One bit per entry in sentenceTypes
+     * for every sentence merged into the
+     * current epoch
+     */
+    private int epochMask = 0;
+    /**
+     * The sentences the receiver sent in
+     * the last complete epoch. Once the current
+     * epoch contains all of them, it is
+     * published right away instead of waiting
+     * for the first sentence of the next epoch.
+     */
+    private int expectedEpochMask = 0;
+    private boolean epochHasPosition = false;
+    private boolean epochPublished = true;
+    private EpochListener epochListener;
+
+    private long sentenceCount = 0;
+    private long malformedCount = 0;
+    private long checksumErrorCount = 0;
+    private long truncatedCount = 0;
 
     // parsers
     class GPGGA implements SentenceParser {
-        public boolean parse(String [] tokens, GPSPosition position) {
-            position.time = Double.parseDouble(tokens[1]);
-            position.lat = Latitude2Decimal(tokens[2], tokens[3]);
-            position.lon = Longitude2Decimal(tokens[4], tokens[5]);
-            position.quality = Integer.parseInt(tokens[6]);
+        public boolean parse(GPSPosition position) {
+            double time = parseDecimal(1);
+            double lat = parseLatitude(2, 3);
+            double lon = parseLongitude(4, 5);
+            int quality = parseInteger(6);
+            double altitude = parseDecimal(9);
+            double geoidSeparator = parseDecimal(11);
+            if (fieldError) {
+                return false;
+            }
+            position.time = time;
+            position.lat = lat;
+            position.lon = lon;
+            position.quality = quality;
             // Subtract geoid separator from MSL, as it isn't precise
             // enough for our use case. We calculate it ourselves
-            position.altitude = Double.parseDouble(tokens[9]);
-            position.origAltitude = Double.parseDouble(tokens[9]);
-            position.geoidSeparator = Double.parseDouble(tokens[11]);
+            position.altitude = altitude;
+            position.origAltitude = altitude;
+            position.geoidSeparator = geoidSeparator;
             return true;
         }
     }
 
-    class GPGGL implements SentenceParser {
-        public boolean parse(String [] tokens, GPSPosition position) {
-            position.lat = Latitude2Decimal(tokens[1], tokens[2]);
-            position.lon = Longitude2Decimal(tokens[3], tokens[4]);
-            position.time = Float.parseFloat(tokens[5]);
+    class GPGLL implements SentenceParser {
+        public boolean parse(GPSPosition position) {
+            double lat = parseLatitude(1, 2);
+            double lon = parseLongitude(3, 4);
+            double time = parseDecimal(5);
+            if (fieldError) {
+                return false;
+            }
+            position.lat = lat;
+            position.lon = lon;
+            position.time = time;
             return true;
         }
     }
 
     class GPRMC implements SentenceParser {
-        public boolean parse(String [] tokens, GPSPosition position) {
-            position.time = Float.parseFloat(tokens[1]);
-            position.lat = Latitude2Decimal(tokens[3], tokens[4]);
-            position.lon = Longitude2Decimal(tokens[5], tokens[6]);
-            position.velocity = Float.parseFloat(tokens[7]);
-            position.dir = Float.parseFloat(tokens[8]);
+        public boolean parse(GPSPosition position) {
+            double time = parseDecimal(1);
+            double lat = parseLatitude(3, 4);
+            double lon = parseLongitude(5, 6);
+            double velocity = parseDecimal(7);
+            double dir = parseDecimal(8);
+            if (fieldError) {
+                return false;
+            }
+            position.time = time;
+            position.lat = lat;
+            position.lon = lon;
+            position.velocity = (float) velocity;
+            position.dir = (float) dir;
             return true;
         }
     }
 
     class GPVTG implements SentenceParser {
-        public boolean parse(String [] tokens, GPSPosition position) {
-            position.dir = Float.parseFloat(tokens[3]);
+        public boolean parse(GPSPosition position) {
+            double dir = parseDecimal(3);
+            if (fieldError) {
+                return false;
+            }
+            position.dir = (float) dir;
             return true;
         }
     }
 
     class GPRMZ implements SentenceParser {
-        public boolean parse(String [] tokens, GPSPosition position) {
-            position.altitude = Float.parseFloat(tokens[1]);
+        public boolean parse(GPSPosition position) {
+            double altitude = parseDecimal(1);
+            if (fieldError) {
+                return false;
+            }
+            position.altitude = altitude;
             return true;
         }
     }
@@ -90,39 +182,400 @@ public class NMEA {
 
     GPSPosition position = new GPSPosition();
 
-    private static final Map<String, SentenceParser> sentenceParsers = new HashMap<String, SentenceParser>();
+    /**
+     * Sentence types are the last three
+     * characters of the address field (e.g. "GGA"
+     * of "GPGGA"), packed into an int so they
+     * can be matched without creating Strings
+     */
+    private final int[] sentenceTypes;
+    private final SentenceParser[] sentenceParsers;
+    /**
+     * Index of the field holding the UTC time,
+     * -1 for sentences without time
+     */
+    private final int[] timeFields;
+    /**
+     * If the sentence carries a position
+     */
+    private final boolean[] positionSentences;
 
     public NMEA() {
-        sentenceParsers.put("GGA", new GPGGA());
-        sentenceParsers.put("GGL", new GPGGL());
-        sentenceParsers.put("RMC", new GPRMC());
-        sentenceParsers.put("RMZ", new GPRMZ());
-        //only really good GPS devices have this sentence but ...
-        sentenceParsers.put("VTG", new GPVTG());
-    }
-
-    public GPSPosition parse(String lines, String typeFilter) throws NullPointerException {
-        String[] splitted = lines.split("\n");
-        for (int i = 0; i < splitted.length; i++) {
-            String line = splitted[i];
-            if(line.startsWith("$")) {
-                String nmea = line.substring(1);
-                String[] tokens = nmea.split(",");
-                if(tokens[0].length() < 2) {
-                    continue;
-                }
-                String type = tokens[0].substring(2);
+        sentenceTypes = new int[]{
+                typeCode("GGA"),
+                typeCode("GLL"),
+                typeCode("RMC"),
+                typeCode("RMZ"),
+                //only really good GPS devices have this sentence but ...
+                typeCode("VTG")
+        };
+        sentenceParsers = new SentenceParser[]{
+                new GPGGA(),
+                new GPGLL(),
+                new GPRMC(),
+                new GPRMZ(),
+                new GPVTG()
+        };
+        timeFields = new int[]{1, 5, 1, -1, -1};
+        positionSentences = new boolean[]{true, true, true, false, false};
+    }
+
+    @Override
+    public void setEpochListener(EpochListener epochListener) {
+        this.epochListener = epochListener;
+    }
+
+    static int typeCode(String type) {
+        return (type.charAt(0) << 16) | (type.charAt(1) << 8) | type.charAt(2);
+    }
+
+    /**
+     * Feeds the next chunk of bytes
+     * read from the receiver into
+     * the parser. Incomplete sentences
+     * at the end of the chunk are kept
+     * and completed by the next call.
+     * Every epoch completed by this chunk
+     * is passed to the EpochListener.
+     */
+    @Override
+    public void parse(byte[] data, int length) {
+        for (int i = 0; i < length; i += 1) {
+            int c = data[i] & 0xFF;
+
+            switch (state) {
+                case STATE_IDLE:
+                    if (c == '$') {
+                        startSentence();
+                    }
+                    break;
 
-                if (!type.equals(typeFilter)) {
-                    continue;
+                case STATE_BODY:
+                    if (c == '*') {
+                        endField();
+                        state = STATE_CHECKSUM_HIGH;
+                    } else if (c == ',') {
+                        calculatedChecksum ^= c;
+                        endField();
+                        if (fieldCount == MAX_FIELDS) {
+                            malformedCount += 1;
+                            state = STATE_IDLE;
+                        } else {
+                            fieldStart[fieldCount] = sentenceLength;
+                        }
+                    } else if (c == '$') {
+                        // The previous sentence never ended,
+                        // e.g. because the receiver's buffer
+                        // overflowed. Start over.
+                        truncatedCount += 1;
+                        startSentence();
+                    } else if (c == '\r' || c == '\n') {
+                        // Line ended without a checksum
+                        malformedCount += 1;
+                        state = STATE_IDLE;
+                    } else if (c < 0x20 || c > 0x7E || sentenceLength == MAX_SENTENCE_LENGTH) {
+                        malformedCount += 1;
+                        state = STATE_IDLE;
+                    } else {
+                        calculatedChecksum ^= c;
+                        sentence[sentenceLength++] = (byte) c;
+                    }
+                    break;
+
+                case STATE_CHECKSUM_HIGH:
+                case STATE_CHECKSUM_LOW:
+                    int nibble = hexValue(c);
+                    if (nibble < 0) {
+                        if (c == '$') {
+                            truncatedCount += 1;
+                            startSentence();
+                        } else {
+                            malformedCount += 1;
+                            state = STATE_IDLE;
+                        }
+                        break;
+                    }
+                    receivedChecksum = (receivedChecksum << 4) | nibble;
+                    if (state == STATE_CHECKSUM_HIGH) {
+                        state = STATE_CHECKSUM_LOW;
+                        break;
+                    }
+                    state = STATE_IDLE;
+                    if (receivedChecksum != calculatedChecksum) {
+                        checksumErrorCount += 1;
+                        break;
+                    }
+                    dispatchSentence();
+                    break;
+            }
+        }
+    }
+
+    private void startSentence() {
+        state = STATE_BODY;
+        sentenceLength = 0;
+        fieldCount = 0;
+        fieldStart[0] = 0;
+        calculatedChecksum = 0;
+        receivedChecksum = 0;
+    }
+
+    private void endField() {
+        fieldEnd[fieldCount] = sentenceLength;
+        fieldCount += 1;
+    }
+
+    /**
+     * Hands a complete sentence with a
+     * valid checksum to its parser and
+     * merges it into the current epoch
+     */
+    private void dispatchSentence() {
+        sentenceCount += 1;
+
+        // Address field: 2 characters talker id + 3 characters type,
+        // or "P" + 4 characters for proprietary sentences
+        int addressLength = fieldEnd[0] - fieldStart[0];
+        if (addressLength < 3) {
+            malformedCount += 1;
+            return;
+        }
+        int typeStart = fieldEnd[0] - 3;
+        int type = (sentence[typeStart] << 16) | (sentence[typeStart + 1] << 8) | sentence[typeStart + 2];
+
+        for (int i = 0; i < sentenceTypes.length; i += 1) {
+            if (sentenceTypes[i] == type) {
+                mergeSentence(i);
+                return;
+            }
+        }
+    }
+
+    private void mergeSentence(int typeIndex) {
+        fieldError = false;
+        double time = Double.NaN;
+        if (timeFields[typeIndex] >= 0) {
+            time = parseDecimal(timeFields[typeIndex]);
+            if (fieldError || fieldEnd[timeFields[typeIndex]] == fieldStart[timeFields[typeIndex]]) {
+                // Without a time the sentence can't be assigned to an epoch
+                malformedCount += 1;
+                return;
+            }
+        }
+
+        if (!Double.isNaN(time)) {
+            if (Double.isNaN(epochTime) && !epochPublished) {
+                // First timed sentence of an epoch which
+                // started with sentences without time
+                epochTime = time;
+            } else if (time != epochTime) {
+                finishEpoch();
+                startEpoch(time);
+            }
+        } else if (epochPublished) {
+            // A sentence without time after the
+            // epoch was complete opens the next one
+            finishEpoch();
+            startEpoch(Double.NaN);
+        }
+
+        if (!sentenceParsers[typeIndex].parse(position)) {
+            malformedCount += 1;
+            return;
+        }
+        position.updatefix();
+        epochMask |= 1 << typeIndex;
+        if (positionSentences[typeIndex]) {
+            epochHasPosition = true;
+        }
+
+        if (expectedEpochMask != 0 && (epochMask & expectedEpochMask) == expectedEpochMask) {
+            publishEpoch();
+        }
+    }
+
+    private void startEpoch(double time) {
+        epochTime = time;
+        epochMask = 0;
+        epochHasPosition = false;
+        epochPublished = false;
+    }
+
+    /**
+     * Called when the first sentence of
+     * the next epoch arrives. Publishes the
+     * epoch if that hasn't happened yet
+     * and remembers which sentences it
+     * consisted of.
+     */
+    private void finishEpoch() {
+        if (epochMask != 0) {
+            expectedEpochMask = epochMask;
+        }
+        publishEpoch();
+    }
+
+    private void publishEpoch() {
+        if (epochPublished || !epochHasPosition) {
+            return;
+        }
+        epochPublished = true;
+        if (epochListener != null) {
+            epochListener.onEpoch(position);
+        }
+    }
+
+    private static int hexValue(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    // field decoders
+
+    /**
+     * Returns the field's value, or 0 if it is
+     * empty or missing (receivers leave fields
+     * empty while they have no fix)
+     */
+    private double parseDecimal(int field) {
+        if (field >= fieldCount) {
+            return 0;
+        }
+        return parseDecimal(fieldStart[field], fieldEnd[field]);
+    }
+
+    private double parseDecimal(int from, int to) {
+        if (from >= to) {
+            return 0;
+        }
+
+        boolean negative = false;
+        int i = from;
+        if (sentence[i] == '-' || sentence[i] == '+') {
+            negative = sentence[i] == '-';
+            i += 1;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenDot = false;
+        for (; i < to; i += 1) {
+            int c = sentence[i];
+            if (c >= '0' && c <= '9') {
+                if (digits == MAX_DIGITS) {
+                    fieldError = true;
+                    return 0;
                 }
-                if(sentenceParsers.containsKey(type)) {
-                    sentenceParsers.get(type).parse(tokens, position);
+                mantissa = mantissa * 10 + (c - '0');
+                digits += 1;
+                if (seenDot) {
+                    fractionDigits += 1;
                 }
-                position.updatefix();
+            } else if (c == '.' && !seenDot) {
+                seenDot = true;
+            } else {
+                fieldError = true;
+                return 0;
+            }
+        }
+
+        if (digits == 0) {
+            fieldError = true;
+            return 0;
+        }
+
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private int parseInteger(int field) {
+        if (field >= fieldCount) {
+            return 0;
+        }
+        int value = 0;
+        for (int i = fieldStart[field]; i < fieldEnd[field]; i += 1) {
+            int c = sentence[i];
+            if (c < '0' || c > '9' || i - fieldStart[field] >= 9) {
+                fieldError = true;
+                return 0;
             }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Converts ddmm.mmmm (latitude, degreeDigits = 2)
+     * or dddmm.mmmm (longitude, degreeDigits = 3)
+     * to decimal degrees
+     */
+    private double parseDegrees(int field, int hemisphereField, int degreeDigits, char negativeHemisphere) {
+        if (field >= fieldCount) {
+            return 0;
+        }
+        int start = fieldStart[field];
+        int end = fieldEnd[field];
+        if (end - start < degreeDigits) {
+            return 0;
+        }
+
+        double med = parseDecimal(start + degreeDigits, end) / 60.0;
+        med += parseDecimal(start, start + degreeDigits);
+        if (hemisphereField < fieldCount
+                && fieldEnd[hemisphereField] > fieldStart[hemisphereField]
+                && sentence[fieldStart[hemisphereField]] == negativeHemisphere) {
+            med = -med;
         }
+        return med;
+    }
+
+    private double parseLatitude(int field, int hemisphereField) {
+        return parseDegrees(field, hemisphereField, 2, 'S');
+    }
+
+    private double parseLongitude(int field, int hemisphereField) {
+        return parseDegrees(field, hemisphereField, 3, 'W');
+    }
+
+    // statistics
+
+    /**
+     * Number of complete sentences
+     * with a valid checksum
+     */
+    public long getSentenceCount() {
+        return sentenceCount;
+    }
+
+    /**
+     * Number of sentences which were
+     * too long, contained invalid characters,
+     * had no checksum or contained
+     * fields which couldn't be decoded
+     */
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    public long getChecksumErrorCount() {
+        return checksumErrorCount;
+    }
 
-        return position;
+    /**
+     * Number of sentences which were
+     * interrupted by the start of the
+     * next sentence
+     */
+    public long getTruncatedCount() {
+        return truncatedCount;
     }
-}
\ No newline at end of file
+}
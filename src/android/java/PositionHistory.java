@@ -0,0 +1,285 @@
+package com.cordovapluginfastcam;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size history of the latest fixes,
+ * stored in one strided array of longs and
+ * indexed by the time they arrived
+ * (SystemClock.elapsedRealtimeNanos).
+ * Allows to look up where the receiver
+ * was at any point in time, e.g. the moment
+ * a photo was taken, instead of using
+ * whatever fix arrived last.
+ *
+ * There must only be one writer, reads
+ * don't block the writer. Every slot access
+ * is volatile, so a reader that sees count
+ * hasn't moved past its entries afterwards
+ * knows they weren't overwritten meanwhile.
+ */
+public class PositionHistory {
+    private static final int DEFAULT_CAPACITY = 2048;
+    /**
+     * Fixes further apart than that aren't
+     * interpolated, the nearer one is used
+     */
+    private static final long MAX_INTERPOLATION_GAP_NANOS = 2000000000L;
+    private static final int MAX_READ_ATTEMPTS = 4;
+
+    // Field offsets within an entry, doubles
+    // are stored as their raw long bits
+    private static final int ARRIVAL_NANOS = 0;
+    private static final int TIME = 1;
+    private static final int LAT = 2;
+    private static final int LON = 3;
+    private static final int ALTITUDE = 4;
+    private static final int ORIG_ALTITUDE = 5;
+    private static final int GEOID_SEPARATOR = 6;
+    private static final int INTERPOLATED_GEOID = 7;
+    private static final int DIR = 8;
+    private static final int VELOCITY = 9;
+    private static final int QUALITY = 10;
+    private static final int GEOID_PENDING = 11;
+    private static final int H_ACC = 12;
+    private static final int SOURCE = 13;
+    private static final int STRIDE = 14;
+
+    private final int capacity;
+    private final AtomicLongArray slots;
+    /**
+     * Number of fixes added so far. Entry n is
+     * stored at n % capacity, entries from
+     * count - capacity to count - 1 are valid.
+     * Entry count - capacity is the next one
+     * overwritten, so readers don't use it.
+     */
+    private volatile long count = 0;
+
+    public PositionHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PositionHistory(int capacity) {
+        this.capacity = capacity;
+        slots = new AtomicLongArray(capacity * STRIDE);
+    }
+
+    /**
+     * Appends a fix. Arrival times
+     * must not decrease.
+     */
+    public void add(GPSPosition position, long arrivalNanos) {
+        long n = count;
+        int i = index(n);
+        slots.set(i + ARRIVAL_NANOS, arrivalNanos);
+        setDouble(i + TIME, position.time);
+        setDouble(i + LAT, position.lat);
+        setDouble(i + LON, position.lon);
+        setDouble(i + ALTITUDE, position.altitude);
+        setDouble(i + ORIG_ALTITUDE, position.origAltitude);
+        setDouble(i + GEOID_SEPARATOR, position.geoidSeparator);
+        setDouble(i + INTERPOLATED_GEOID, position.interpolatedGeoid);
+        setDouble(i + DIR, position.dir);
+        setDouble(i + VELOCITY, position.velocity);
+        slots.set(i + QUALITY, position.quality);
+        slots.set(i + GEOID_PENDING, position.geoidPending ? 1 : 0);
+        setDouble(i + H_ACC, position.hAcc);
+        slots.set(i + SOURCE, position.source);
+        // Publishes the entry to readers
+        count = n + 1;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Copies the n-th fix ever added
+     * into the given position.
+     *
+     * @return false if the fix was already
+     * overwritten or doesn't exist yet
+     */
+    public boolean get(long n, GPSPosition into) {
+        if (n < 0 || n >= count || n <= count - capacity) {
+            return false;
+        }
+        copy(index(n), into);
+        return n > count - capacity;
+    }
+
+    /**
+     * Writes the position at the given time
+     * into the given position, linearly
+     * interpolated between the two fixes
+     * around it. Times after the last fix
+     * return the last fix. Takes O(log n).
+     *
+     * @return false if there is no fix around
+     * that time
+     */
+    public boolean interpolate(long timestampNanos, GPSPosition into) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt += 1) {
+            long end = count;
+            if (end == 0) {
+                return false;
+            }
+            // Entry end - capacity may already be overwritten
+            long start = Math.max(0, end - capacity + 1);
+            if (timestampNanos < arrivalNanos(index(start))) {
+                if (count - capacity < start) {
+                    return false;
+                }
+                continue;
+            }
+
+            long before = search(start, end, timestampNanos);
+            boolean found;
+            if (before == end - 1) {
+                found = timestampNanos - arrivalNanos(index(before)) <= MAX_INTERPOLATION_GAP_NANOS;
+                if (found) {
+                    copy(index(before), into);
+                }
+            } else {
+                found = interpolate(index(before), index(before + 1), timestampNanos, into);
+            }
+
+            // Retry if the writer overwrote any of
+            // the entries searched while they were read
+            if (count - capacity < start) {
+                return found;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Binary search for the last entry
+     * which arrived at or before the given time
+     */
+    private long search(long start, long end, long timestampNanos) {
+        long low = start;
+        long high = end - 1;
+        while (low < high) {
+            long mid = (low + high + 1) >>> 1;
+            if (arrivalNanos(index(mid)) <= timestampNanos) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Offset of the n-th entry in slots
+     */
+    private int index(long n) {
+        return (int) (n % capacity) * STRIDE;
+    }
+
+    private long arrivalNanos(int i) {
+        return slots.get(i + ARRIVAL_NANOS);
+    }
+
+    private double getDouble(int i) {
+        return Double.longBitsToDouble(slots.get(i));
+    }
+
+    private void setDouble(int i, double value) {
+        slots.set(i, Double.doubleToRawLongBits(value));
+    }
+
+    private boolean interpolate(int i, int j, long timestampNanos, GPSPosition into) {
+        long arrivalI = arrivalNanos(i);
+        long arrivalJ = arrivalNanos(j);
+        long gap = arrivalJ - arrivalI;
+        if (gap > MAX_INTERPOLATION_GAP_NANOS || gap <= 0) {
+            long toBefore = timestampNanos - arrivalI;
+            long toAfter = arrivalJ - timestampNanos;
+            if (Math.min(toBefore, toAfter) > MAX_INTERPOLATION_GAP_NANOS) {
+                return false;
+            }
+            copy(toBefore <= toAfter ? i : j, into);
+            return true;
+        }
+
+        double f = (timestampNanos - arrivalI) / (double) gap;
+        into.lat = lerp(i, j, LAT, f);
+        into.lon = lerp(i, j, LON, f);
+        into.altitude = lerp(i, j, ALTITUDE, f);
+        into.origAltitude = lerp(i, j, ORIG_ALTITUDE, f);
+        into.geoidSeparator = lerp(i, j, GEOID_SEPARATOR, f);
+        into.interpolatedGeoid = lerp(i, j, INTERPOLATED_GEOID, f);
+        into.velocity = (float) lerp(i, j, VELOCITY, f);
+        // Take the shorter way around the circle
+        double dirI = getDouble(i + DIR);
+        double dirDiff = getDouble(j + DIR) - dirI;
+        if (dirDiff > 180) {
+            dirDiff -= 360;
+        } else if (dirDiff < -180) {
+            dirDiff += 360;
+        }
+        into.dir = (float) ((dirI + dirDiff * f + 360) % 360);
+        into.time = lerpTimeOfDay(getDouble(i + TIME), getDouble(j + TIME), f);
+        // Discrete values are taken from the nearer fix
+        int nearer = f < 0.5 ? i : j;
+        into.quality = (int) slots.get(nearer + QUALITY);
+        into.source = (int) slots.get(nearer + SOURCE);
+        into.geoidPending = slots.get(i + GEOID_PENDING) != 0 || slots.get(j + GEOID_PENDING) != 0;
+        into.hAcc = lerp(i, j, H_ACC, f);
+        into.updatefix();
+        return true;
+    }
+
+    private double lerp(int i, int j, int field, double f) {
+        return lerp(getDouble(i + field), getDouble(j + field), f);
+    }
+
+    private static double lerp(double a, double b, double f) {
+        return a + (b - a) * f;
+    }
+
+    /**
+     * Interpolates UTC times of day in
+     * the hhmmss.ss form of the receiver
+     */
+    private static double lerpTimeOfDay(double a, double b, double f) {
+        double secondsA = toSecondsOfDay(a);
+        double secondsB = toSecondsOfDay(b);
+        if (secondsB < secondsA) {
+            // Wrapped at midnight
+            secondsB += 86400;
+        }
+        double seconds = lerp(secondsA, secondsB, f) % 86400;
+        int whole = (int) seconds;
+        return (whole / 3600) * 10000 + ((whole / 60) % 60) * 100 + (whole % 60) + (seconds - whole);
+    }
+
+    private static double toSecondsOfDay(double hhmmss) {
+        int whole = (int) hhmmss;
+        return (whole / 10000) * 3600 + ((whole / 100) % 100) * 60 + (hhmmss - (whole / 100) * 100);
+    }
+
+    private void copy(int i, GPSPosition into) {
+        into.time = getDouble(i + TIME);
+        into.lat = getDouble(i + LAT);
+        into.lon = getDouble(i + LON);
+        into.altitude = getDouble(i + ALTITUDE);
+        into.origAltitude = getDouble(i + ORIG_ALTITUDE);
+        into.geoidSeparator = getDouble(i + GEOID_SEPARATOR);
+        into.interpolatedGeoid = getDouble(i + INTERPOLATED_GEOID);
+        into.dir = (float) getDouble(i + DIR);
+        into.velocity = (float) getDouble(i + VELOCITY);
+        into.quality = (int) slots.get(i + QUALITY);
+        into.geoidPending = slots.get(i + GEOID_PENDING) != 0;
+        into.hAcc = getDouble(i + H_ACC);
+        into.source = (int) slots.get(i + SOURCE);
+        into.updatefix();
+    }
+}
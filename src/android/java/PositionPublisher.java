@@ -0,0 +1,74 @@
+package com.cordovapluginfastcam;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands positions from the thread
+ * reading the receiver to any number
+ * of reader threads without locks.
+ *
+ * Every fix is written to a position of
+ * its own, which is never changed again
+ * once it is published with a single
+ * atomic reference switch. A reader
+ * therefore either sees the previous or
+ * the new fix, never a mix of both, for
+ * as long as it keeps the position.
+ *
+ * There must only be one writer
+ * at a time.
+ */
+public class PositionPublisher {
+    private final AtomicReference<GPSPosition> latest = new AtomicReference<>();
+
+    /**
+     * Returns the position the next fix
+     * should be written to. Must be followed
+     * by a call to publish, after which it
+     * must not be changed anymore.
+     */
+    public GPSPosition acquire() {
+        // One small object per fix. Reusing positions
+        // would need fences to keep readers from
+        // seeing half-written ones, and
+        // VarHandle fences need API 33.
+        return new GPSPosition();
+    }
+
+    public void publish(GPSPosition position) {
+        latest.set(position);
+    }
+
+    /**
+     * Returns the latest published position.
+     * It must be treated as read-only.
+     */
+    public GPSPosition getLatest() {
+        return latest.get();
+    }
+
+    /**
+     * Copies the latest published position
+     * into the given one.
+     *
+     * @return false if nothing was published yet
+     */
+    public boolean copyLatest(GPSPosition into) {
+        GPSPosition source = latest.get();
+        if (source == null) {
+            return false;
+        }
+        into.copyFrom(source);
+        return true;
+    }
+
+    /**
+     * Copies a position previously returned
+     * by this publisher. Published positions
+     * don't change, so this always succeeds.
+     */
+    public static boolean copy(GPSPosition source, GPSPosition into) {
+        into.copyFrom(source);
+        return true;
+    }
+}
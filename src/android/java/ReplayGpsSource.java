@@ -0,0 +1,151 @@
+package com.cordovapluginfastcam;
+
+import com.hoho.android.usbserial.util.SerialInputOutputManager;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a recorded receiver log
+ * through the normal onNewData path,
+ * so field sessions can be reproduced
+ * and the pipeline can be load-tested
+ * without a USB device.
+ *
+ * Log format (all values little-endian):
+ * MAGIC | records of [elapsedRealtimeNanos (long) | length (int) | bytes]
+ *
+ * Files without the magic header are
+ * treated as plain dumps of the serial
+ * stream. They carry no timing and are
+ * always fed as fast as possible.
+ */
+public class ReplayGpsSource implements GpsSource {
+    public static final byte[] MAGIC = "FCGPSLG1".getBytes(StandardCharsets.US_ASCII);
+    public static final int RECORD_HEADER_LENGTH = 12;
+    /**
+     * Chunks are never longer than what
+     * the USB serial reader delivers
+     */
+    public static final int MAX_CHUNK_LENGTH = 4096;
+    private static final int PLAIN_CHUNK_LENGTH = 256;
+
+    private final File file;
+    private final double speed;
+    private volatile Thread thread;
+
+    /**
+     * @param speed multiple of the recorded timing,
+     *              e.g. 1 = original timing,
+     *              10 = ten times faster,
+     *              0 or less = as fast as possible
+     */
+    public ReplayGpsSource(File file, double speed) {
+        this.file = file;
+        this.speed = speed;
+    }
+
+    @Override
+    public void start(SerialInputOutputManager.Listener listener) {
+        Thread thread = new Thread(() -> this.run(listener), "ReplayGpsSource");
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread thread = this.thread;
+        this.thread = null;
+        if (thread != null) {
+            // Not interrupt: that would close the FileChannels
+            // the thread reads, e.g. of the shared tiled geoid
+            // grid in the altitude correction. Clearing the
+            // field stops the loop, unpark ends the wait.
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private boolean isStopped() {
+        return this.thread != Thread.currentThread();
+    }
+
+    private void run(SerialInputOutputManager.Listener listener) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(this.file))) {
+            in.mark(MAGIC.length);
+            byte[] magic = new byte[MAGIC.length];
+            int read = in.read(magic);
+            if (read == MAGIC.length && Arrays.equals(magic, MAGIC)) {
+                this.replayRecords(new DataInputStream(in), listener);
+            } else {
+                in.reset();
+                this.replayPlain(in, listener);
+            }
+        } catch (IOException e) {
+            listener.onRunError(e);
+        }
+    }
+
+    private void replayRecords(DataInputStream in, SerialInputOutputManager.Listener listener) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        long firstRecordNanos = 0;
+        long startNanos = System.nanoTime();
+        boolean first = true;
+
+        while (!this.isStopped()) {
+            header.clear();
+            try {
+                in.readFully(header.array());
+            } catch (EOFException e) {
+                return;
+            }
+            long recordNanos = header.getLong(0);
+            int length = header.getInt(8);
+            if (length < 0 || length > MAX_CHUNK_LENGTH) {
+                throw new IOException("Corrupt GPS log record of length " + length);
+            }
+            byte[] chunk = new byte[length];
+            try {
+                in.readFully(chunk);
+            } catch (EOFException e) {
+                // Log was cut off while recording
+                return;
+            }
+
+            if (first) {
+                firstRecordNanos = recordNanos;
+                first = false;
+            }
+            if (this.speed > 0) {
+                long due = startNanos + (long) ((recordNanos - firstRecordNanos) / this.speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0 && !this.isStopped()) {
+                    LockSupport.parkNanos(wait);
+                }
+                if (this.isStopped()) {
+                    return;
+                }
+            }
+            listener.onNewData(chunk);
+        }
+    }
+
+    private void replayPlain(InputStream in, SerialInputOutputManager.Listener listener) throws IOException {
+        byte[] buffer = new byte[PLAIN_CHUNK_LENGTH];
+        int read;
+        while (!this.isStopped() && (read = in.read(buffer)) > 0) {
+            // onNewData may keep the array
+            listener.onNewData(Arrays.copyOf(buffer, read));
+        }
+    }
+}
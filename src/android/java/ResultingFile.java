@@ -16,10 +16,11 @@ public class ResultingFile {
      * MS Timestamp when the
      * file was created. For
      * videos, it's the end
-     * timestamp
+     * timestamp. Has a fractional
+     * part, see ClockDiscipline.
      */
-    private long timestamp;
-    public ResultingFile(String filePath, ResultingFileTypes type, long timestamp, JSONObject position) {
+    private double timestamp;
+    public ResultingFile(String filePath, ResultingFileTypes type, double timestamp, JSONObject position) {
         this.filePath = filePath;
         this.timestamp = timestamp;
         this.fileType = type;
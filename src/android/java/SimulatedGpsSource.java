@@ -0,0 +1,73 @@
+package com.cordovapluginfastcam;
+
+import com.hoho.android.usbserial.util.SerialInputOutputManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TimeZone;
+
+/**
+ * Pretends to be a receiver sending
+ * GGA sentences at 12 Hz, with random
+ * jitter around a fixed point and
+ * a fixed altitude
+ */
+public class SimulatedGpsSource implements GpsSource {
+    private static final double LAT = 46.717705;
+    private static final double LON = 11.657244;
+
+    private final double altitude;
+    private Timer timer;
+
+    /**
+     * @param altitude reported in every
+     *                 sentence, without
+     *                 geoid separation
+     */
+    public SimulatedGpsSource(double altitude) {
+        this.altitude = altitude;
+    }
+
+    @Override
+    public void start(SerialInputOutputManager.Listener listener) {
+        Random rand = new Random();
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+        timer = new Timer();
+        timer.scheduleAtFixedRate(new TimerTask(){
+            @Override
+            public void run(){
+                float addToLonRandom = rand.nextFloat() / 10;
+                float addToLatRandom = rand.nextFloat() / 10;
+                utc.setTimeInMillis(System.currentTimeMillis());
+                String sentence = gga(utc, LAT + addToLatRandom, LON + addToLonRandom, altitude);
+                listener.onNewData(sentence.getBytes(StandardCharsets.US_ASCII));
+            }
+        }, 0, 1000 / 12);
+    }
+
+    @Override
+    public void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    private static String gga(Calendar utc, double lat, double lon, double altitude) {
+        String body = String.format(Locale.US, "GPGGA,%02d%02d%02d.%02d,%02d%08.5f,N,%03d%08.5f,E,4,12,0.7,%.3f,M,0.000,M,,",
+                utc.get(Calendar.HOUR_OF_DAY), utc.get(Calendar.MINUTE), utc.get(Calendar.SECOND), utc.get(Calendar.MILLISECOND) / 10,
+                (int) lat, (lat - (int) lat) * 60,
+                (int) lon, (lon - (int) lon) * 60,
+                altitude);
+        int checksum = 0;
+        for (int i = 0; i < body.length(); i += 1) {
+            checksum ^= body.charAt(i);
+        }
+        return String.format("$%s*%02X\r\n", body, checksum);
+    }
+}
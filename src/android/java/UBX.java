@@ -0,0 +1,280 @@
+package com.cordovapluginfastcam;
+
+/**
+ * Decoder for the binary u-blox UBX
+ * protocol. Only NAV-PVT messages are
+ * decoded, they contain everything a
+ * position needs in one fixed-size frame,
+ * so no text has to be parsed at all.
+ * Every other message is skipped.
+ *
+ * Frame layout:
+ * 0xB5 0x62 | class | id | length (LE uint16) | payload | CK_A | CK_B
+ *
+ * @see <a href="https://www.u-blox.com/en/docs/UBX-18010854">u-blox ZED-F9P interface description</a>
+ */
+public class UBX implements GpsProtocolParser {
+    private static final int SYNC_CHAR_1 = 0xB5;
+    private static final int SYNC_CHAR_2 = 0x62;
+    private static final int CLASS_NAV = 0x01;
+    private static final int ID_NAV_PVT = 0x07;
+    private static final int NAV_PVT_LENGTH = 92;
+    /**
+     * Longer frames are treated as
+     * garbage and the decoder resyncs
+     */
+    private static final int MAX_FRAME_LENGTH = 4096;
+    private static final double KNOTS_PER_MM_S = 3600.0 / 1852000.0;
+    /**
+     * NAV-PVT valid flags
+     */
+    private static final int VALID_TIME = 0x02;
+    private static final int FULLY_RESOLVED = 0x04;
+
+    private static final int STATE_SYNC_1 = 0;
+    private static final int STATE_SYNC_2 = 1;
+    private static final int STATE_CLASS = 2;
+    private static final int STATE_ID = 3;
+    private static final int STATE_LENGTH_1 = 4;
+    private static final int STATE_LENGTH_2 = 5;
+    private static final int STATE_PAYLOAD = 6;
+    private static final int STATE_CK_A = 7;
+    private static final int STATE_CK_B = 8;
+
+    private final byte[] payload = new byte[NAV_PVT_LENGTH];
+    private int state = STATE_SYNC_1;
+    private int messageClass;
+    private int messageId;
+    private int payloadLength;
+    private int payloadIndex;
+    /**
+     * Only NAV-PVT payloads are stored,
+     * other payloads are just counted
+     */
+    private boolean storePayload;
+    private int ckA;
+    private int ckB;
+    private int receivedCkA;
+
+    private long frameCount = 0;
+    private long malformedCount = 0;
+    private long checksumErrorCount = 0;
+
+    private GPSPosition position = new GPSPosition();
+    private EpochListener epochListener;
+
+    @Override
+    public void setEpochListener(EpochListener epochListener) {
+        this.epochListener = epochListener;
+    }
+
+    @Override
+    public void parse(byte[] data, int length) {
+        for (int i = 0; i < length; i += 1) {
+            int c = data[i] & 0xFF;
+
+            switch (state) {
+                case STATE_SYNC_1:
+                    if (c == SYNC_CHAR_1) {
+                        state = STATE_SYNC_2;
+                    }
+                    break;
+
+                case STATE_SYNC_2:
+                    if (c == SYNC_CHAR_2) {
+                        state = STATE_CLASS;
+                        ckA = 0;
+                        ckB = 0;
+                    } else if (c != SYNC_CHAR_1) {
+                        state = STATE_SYNC_1;
+                    }
+                    break;
+
+                case STATE_CLASS:
+                    messageClass = c;
+                    updateChecksum(c);
+                    state = STATE_ID;
+                    break;
+
+                case STATE_ID:
+                    messageId = c;
+                    updateChecksum(c);
+                    state = STATE_LENGTH_1;
+                    break;
+
+                case STATE_LENGTH_1:
+                    payloadLength = c;
+                    updateChecksum(c);
+                    state = STATE_LENGTH_2;
+                    break;
+
+                case STATE_LENGTH_2:
+                    payloadLength |= c << 8;
+                    updateChecksum(c);
+                    if (payloadLength > MAX_FRAME_LENGTH) {
+                        malformedCount += 1;
+                        state = STATE_SYNC_1;
+                        break;
+                    }
+                    storePayload = messageClass == CLASS_NAV && messageId == ID_NAV_PVT;
+                    if (storePayload && payloadLength != NAV_PVT_LENGTH) {
+                        malformedCount += 1;
+                        state = STATE_SYNC_1;
+                        break;
+                    }
+                    payloadIndex = 0;
+                    state = payloadLength == 0 ? STATE_CK_A : STATE_PAYLOAD;
+                    break;
+
+                case STATE_PAYLOAD:
+                    if (storePayload) {
+                        payload[payloadIndex] = (byte) c;
+                    }
+                    payloadIndex += 1;
+                    updateChecksum(c);
+                    if (payloadIndex == payloadLength) {
+                        state = STATE_CK_A;
+                    }
+                    break;
+
+                case STATE_CK_A:
+                    receivedCkA = c;
+                    state = STATE_CK_B;
+                    break;
+
+                case STATE_CK_B:
+                    state = STATE_SYNC_1;
+                    if (receivedCkA != ckA || c != ckB) {
+                        checksumErrorCount += 1;
+                        break;
+                    }
+                    frameCount += 1;
+                    if (storePayload) {
+                        decodeNavPvt();
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 8-Bit Fletcher checksum over
+     * class, id, length and payload
+     */
+    private void updateChecksum(int c) {
+        ckA = (ckA + c) & 0xFF;
+        ckB = (ckB + ckA) & 0xFF;
+    }
+
+    private void decodeNavPvt() {
+        int hour = u1(8);
+        int min = u1(9);
+        int sec = u1(10);
+        int valid = u1(11);
+        int nano = i4(16);
+        int fixType = u1(20);
+        int flags = u1(21);
+        boolean gnssFixOk = (flags & 0x01) != 0;
+        boolean diffSoln = (flags & 0x02) != 0;
+        int carrSoln = (flags >> 6) & 0x03;
+
+        if ((valid & VALID_TIME) != 0 && (valid & FULLY_RESOLVED) != 0) {
+            // UTC time of day in the same hhmmss.sss
+            // form the NMEA sentences use. nano can be
+            // negative, so go through milliseconds of day.
+            long msOfDay = Math.round((hour * 3600 + min * 60 + sec) * 1000 + nano / 1e6);
+            if (msOfDay < 0) {
+                msOfDay += 86400000;
+            }
+            msOfDay %= 86400000;
+            int wholeSeconds = (int) (msOfDay / 1000);
+            double fraction = (msOfDay % 1000) / 1000.0;
+            position.time = (wholeSeconds / 3600) * 10000 + ((wholeSeconds / 60) % 60) * 100 + (wholeSeconds % 60) + fraction;
+        } else {
+            // Until the receiver resolved UTC (leap
+            // seconds), its time can be off by seconds.
+            // 0 keeps it out of the clock discipline.
+            position.time = 0;
+        }
+
+        position.lon = i4(24) * 1e-7;
+        position.lat = i4(28) * 1e-7;
+        double heightEllipsoid = i4(32) / 1000.0;
+        double heightMsl = i4(36) / 1000.0;
+        position.altitude = heightMsl;
+        position.origAltitude = heightMsl;
+        // Same meaning as the geoid separation
+        // field of the GGA sentence
+        position.geoidSeparator = heightEllipsoid - heightMsl;
+        position.hAcc = u4(40) / 1000.0;
+        position.velocity = (float) (i4(60) * KNOTS_PER_MM_S);
+        position.dir = (float) (i4(64) * 1e-5);
+        position.quality = toGgaQuality(fixType, gnssFixOk, diffSoln, carrSoln);
+        position.updatefix();
+
+        if (epochListener != null) {
+            epochListener.onEpoch(position);
+        }
+    }
+
+    /**
+     * Maps the UBX fix type and flags to
+     * the GGA quality indicator used
+     * everywhere else
+     */
+    private static int toGgaQuality(int fixType, boolean gnssFixOk, boolean diffSoln, int carrSoln) {
+        if (!gnssFixOk || fixType == 0 || fixType == 5) {
+            return 0;
+        }
+        if (fixType == 1) {
+            // Dead reckoning only
+            return 6;
+        }
+        if (carrSoln == 2) {
+            return 4;
+        }
+        if (carrSoln == 1) {
+            return 5;
+        }
+        return diffSoln ? 2 : 1;
+    }
+
+    // little-endian field readers
+
+    private int u1(int offset) {
+        return payload[offset] & 0xFF;
+    }
+
+    private long u4(int offset) {
+        return i4(offset) & 0xFFFFFFFFL;
+    }
+
+    private int i4(int offset) {
+        return (payload[offset] & 0xFF)
+                | (payload[offset + 1] & 0xFF) << 8
+                | (payload[offset + 2] & 0xFF) << 16
+                | payload[offset + 3] << 24;
+    }
+
+    // statistics
+
+    /**
+     * Number of frames with
+     * a valid checksum
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Number of frames with an
+     * implausible length
+     */
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    public long getChecksumErrorCount() {
+        return checksumErrorCount;
+    }
+}
@@ -0,0 +1,114 @@
+package com.cordovapluginfastcam;
+
+import android.app.Activity;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+import com.hoho.android.usbserial.driver.UsbSerialProber;
+import com.hoho.android.usbserial.util.SerialInputOutputManager;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads a GPS device connected
+ * via USB serial (OTG). Devices and
+ * ports are chosen by their index,
+ * in the order the prober lists them.
+ */
+public class UsbSerialSource implements GpsSource {
+    private static final String TAG = "UsbSerialSource";
+    private Activity activity;
+    private int baudRate;
+    /**
+     * Broadcast action sent once the
+     * user granted the USB permission
+     */
+    private String permissionAction;
+    private int deviceIndex;
+    private int portIndex;
+    private UsbSerialPort port;
+    private SerialInputOutputManager usbIoManager;
+    /**
+     * Runs usbIoManager, one per start
+     */
+    private ExecutorService ioExecutor;
+
+    public UsbSerialSource(Activity activity, int baudRate, String permissionAction) {
+        this(activity, baudRate, permissionAction, 0, 0);
+    }
+
+    public UsbSerialSource(Activity activity, int baudRate, String permissionAction, int deviceIndex, int portIndex) {
+        this.activity = activity;
+        this.baudRate = baudRate;
+        this.permissionAction = permissionAction;
+        this.deviceIndex = deviceIndex;
+        this.portIndex = portIndex;
+    }
+
+    @Override
+    public void start(SerialInputOutputManager.Listener listener) {
+        // Find all available drivers from attached devices.
+        UsbManager manager = (UsbManager) this.activity.getSystemService(Context.USB_SERVICE);
+        List<UsbSerialDriver> availableDrivers = UsbSerialProber.getDefaultProber().findAllDrivers(manager);
+        if (availableDrivers.size() <= this.deviceIndex) {
+            Log.d(TAG, "USB device " + this.deviceIndex + " not found!");
+            return;
+        }
+
+        UsbSerialDriver driver = availableDrivers.get(this.deviceIndex);
+        if (driver.getPorts().size() <= this.portIndex) {
+            Log.d(TAG, "USB device " + this.deviceIndex + " has no port " + this.portIndex);
+            return;
+        }
+        UsbDeviceConnection connection = manager.openDevice(driver.getDevice());
+        if (connection == null) {
+            Log.d(TAG, "Need to request permission!");
+            PendingIntent pendingIntent = PendingIntent.getBroadcast(this.activity, 0, new Intent(this.permissionAction), 0);
+            manager.requestPermission(driver.getDevice(), pendingIntent);
+            Log.d(TAG, "Permission requested.");
+            return;
+        }
+
+        port = driver.getPorts().get(this.portIndex);
+        try {
+            port.open(connection);
+            port.setParameters(this.baudRate, 8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        usbIoManager = new SerialInputOutputManager(port, listener);
+        ioExecutor = Executors.newSingleThreadExecutor();
+        ioExecutor.submit(usbIoManager);
+    }
+
+    @Override
+    public void stop() {
+        if (usbIoManager != null) {
+            usbIoManager.stop();
+            usbIoManager = null;
+        }
+        if (ioExecutor != null) {
+            // Its thread ends once usbIoManager stopped
+            ioExecutor.shutdown();
+            ioExecutor = null;
+        }
+        if (port != null) {
+            try {
+                port.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            port = null;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.cordovapluginfastcam.math;
+
+/**
+ * The cells of a grid which isn't rectilinear,
+ * stored as flat arrays. Every node's coordinates
+ * and height are stored once, in row-major order.
+ * A cell is addressed by the index of its upper
+ * left node's row and column:
+ * cell = row * (cols - 1) + col,
+ * its corners are the nodes (row, col),
+ * (row, col + 1), (row + 1, col) and
+ * (row + 1, col + 1).
+ */
+public class GridCells {
+    private final int rows;
+    private final int cols;
+    private final double[] nodeX;
+    private final double[] nodeY;
+    private final GridHeights heights;
+
+    private GridCells(int rows, int cols, double[] nodeX, double[] nodeY, GridHeights heights) {
+        this.rows = rows;
+        this.cols = cols;
+        this.nodeX = nodeX;
+        this.nodeY = nodeY;
+        this.heights = heights;
+    }
+
+    public static GridCells create(double[][] gridX, double[][] gridY, double[][] gridH, GridHeights.Precision precision) throws PointAltitudeInterpolator.DataNotInGridFormException {
+        int rows = gridX.length;
+        if (rows < 2 || gridY.length != rows || gridH.length != rows) {
+            throw new PointAltitudeInterpolator.DataNotInGridFormException();
+        }
+        int cols = gridX[0].length;
+        if (cols < 2) {
+            throw new PointAltitudeInterpolator.DataNotInGridFormException();
+        }
+
+        double[] nodeX = new double[rows * cols];
+        double[] nodeY = new double[rows * cols];
+        double[] nodeH = new double[rows * cols];
+        for (int row = 0; row < rows; row += 1) {
+            if (gridX[row].length != cols || gridY[row].length != cols || gridH[row].length != cols) {
+                throw new PointAltitudeInterpolator.DataNotInGridFormException();
+            }
+            System.arraycopy(gridX[row], 0, nodeX, row * cols, cols);
+            System.arraycopy(gridY[row], 0, nodeY, row * cols, cols);
+            System.arraycopy(gridH[row], 0, nodeH, row * cols, cols);
+        }
+        return new GridCells(rows, cols, nodeX, nodeY, GridHeights.of(nodeH, precision));
+    }
+
+    public int getCellCount() {
+        return (this.rows - 1) * (this.cols - 1);
+    }
+
+    /**
+     * Index of the cell's upper left node
+     */
+    private int firstNode(int cell) {
+        return (cell / (this.cols - 1)) * this.cols + cell % (this.cols - 1);
+    }
+
+    public double getCentroidX(int cell) {
+        int k = this.firstNode(cell);
+        return (this.nodeX[k] + this.nodeX[k + 1] + this.nodeX[k + this.cols] + this.nodeX[k + this.cols + 1]) / 4;
+    }
+
+    public double getCentroidY(int cell) {
+        int k = this.firstNode(cell);
+        return (this.nodeY[k] + this.nodeY[k + 1] + this.nodeY[k + this.cols] + this.nodeY[k + this.cols + 1]) / 4;
+    }
+
+    /**
+     * Interpolates in the given cell, or in one
+     * of the up to 8 cells around it if the point
+     * isn't inside. On irregular grids the cell
+     * with the nearest centroid doesn't always
+     * contain the point, but one next to it does.
+     *
+     * @return NaN if the point is outside
+     * of all of these cells
+     */
+    public double interpolateAround(int cell, double x, double y) {
+        double h = this.interpolate(cell, x, y);
+        if (!Double.isNaN(h)) {
+            return h;
+        }
+        int row = cell / (this.cols - 1);
+        int col = cell % (this.cols - 1);
+        for (int r = Math.max(0, row - 1); r <= Math.min(this.rows - 2, row + 1); r += 1) {
+            for (int c = Math.max(0, col - 1); c <= Math.min(this.cols - 2, col + 1); c += 1) {
+                if (r == row && c == col) {
+                    continue;
+                }
+                h = this.interpolate(r * (this.cols - 1) + c, x, y);
+                if (!Double.isNaN(h)) {
+                    return h;
+                }
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Bilinear interpolation in the bounding box
+     * of the cell. Every corner is taken as the
+     * corner of the box it is nearest to.
+     *
+     * @return NaN if the point is
+     * outside of the cell
+     */
+    public double interpolate(int cell, double x, double y) {
+        int k = this.firstNode(cell);
+        int k10 = k + 1;
+        int k01 = k + this.cols;
+        int k11 = k01 + 1;
+        double x1 = Math.min(Math.min(this.nodeX[k], this.nodeX[k10]), Math.min(this.nodeX[k01], this.nodeX[k11]));
+        double x2 = Math.max(Math.max(this.nodeX[k], this.nodeX[k10]), Math.max(this.nodeX[k01], this.nodeX[k11]));
+        double y1 = Math.min(Math.min(this.nodeY[k], this.nodeY[k10]), Math.min(this.nodeY[k01], this.nodeY[k11]));
+        double y2 = Math.max(Math.max(this.nodeY[k], this.nodeY[k10]), Math.max(this.nodeY[k01], this.nodeY[k11]));
+        if (x < x1 || x > x2 || y < y1 || y > y2) {
+            return Double.NaN;
+        }
+
+        // fQ11: lower left, fQ21: lower right,
+        // fQ12: upper left, fQ22: upper right
+        double fQ11 = 0;
+        double fQ21 = 0;
+        double fQ12 = 0;
+        double fQ22 = 0;
+        for (int c = 0; c < 4; c += 1) {
+            int corner = k + (c & 1) + (c >> 1) * this.cols;
+            boolean right = this.nodeX[corner] - x1 > x2 - this.nodeX[corner];
+            boolean upper = this.nodeY[corner] - y1 > y2 - this.nodeY[corner];
+            double h = this.heights.get(corner);
+            if (upper) {
+                if (right) {
+                    fQ22 = h;
+                } else {
+                    fQ12 = h;
+                }
+            } else if (right) {
+                fQ21 = h;
+            } else {
+                fQ11 = h;
+            }
+        }
+
+        // Apply bilinear interpolation using 4 points
+        return ((y2 - y) / (y2 - y1)) * (((x2 - x) / (x2 - x1)) * fQ11 + ((x - x1) / (x2 - x1)) * fQ21)
+                + ((y - y1) / (y2 - y1)) * (((x2 - x) / (x2 - x1)) * fQ12 + ((x - x1) / (x2 - x1)) * fQ22);
+    }
+}
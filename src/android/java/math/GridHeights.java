@@ -0,0 +1,91 @@
+package com.cordovapluginfastcam.math;
+
+import java.nio.ShortBuffer;
+
+/**
+ * The heights of a grid's nodes in one flat
+ * array, in full, float or 16 bit precision.
+ * 16 bit heights are stored as
+ * offset + scale * value, either in a
+ * short[] or in a (memory-mapped) buffer.
+ */
+public class GridHeights {
+    public static enum Precision {
+        DOUBLE,
+        /**
+         * About 4 micrometers at 50 m
+         */
+        FLOAT,
+        /**
+         * 1/65534 of the height range
+         */
+        SHORT
+    }
+
+    private final double[] doubles;
+    private final float[] floats;
+    private final short[] shorts;
+    private final ShortBuffer shortBuffer;
+    private final double offset;
+    private final double scale;
+
+    private GridHeights(double[] doubles, float[] floats, short[] shorts, ShortBuffer shortBuffer, double offset, double scale) {
+        this.doubles = doubles;
+        this.floats = floats;
+        this.shorts = shorts;
+        this.shortBuffer = shortBuffer;
+        this.offset = offset;
+        this.scale = scale;
+    }
+
+    /**
+     * Stores the given heights with the given
+     * precision. DOUBLE keeps the array as it is.
+     */
+    public static GridHeights of(double[] heights, Precision precision) {
+        if (precision == Precision.FLOAT) {
+            float[] floats = new float[heights.length];
+            for (int k = 0; k < heights.length; k += 1) {
+                floats[k] = (float) heights[k];
+            }
+            return new GridHeights(null, floats, null, null, 0, 1);
+        }
+        if (precision == Precision.SHORT) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (double height : heights) {
+                min = Math.min(min, height);
+                max = Math.max(max, height);
+            }
+            double scale = max > min ? (max - min) / (Short.MAX_VALUE - Short.MIN_VALUE - 1) : 1;
+            double offset = (min + max) / 2;
+            short[] shorts = new short[heights.length];
+            for (int k = 0; k < heights.length; k += 1) {
+                shorts[k] = (short) Math.round((heights[k] - offset) / scale);
+            }
+            return new GridHeights(null, null, shorts, null, offset, scale);
+        }
+        return new GridHeights(heights, null, null, null, 0, 1);
+    }
+
+    /**
+     * Uses the buffer as it is,
+     * without copying it
+     */
+    public static GridHeights of(ShortBuffer heights, double offset, double scale) {
+        return new GridHeights(null, null, null, heights, offset, scale);
+    }
+
+    public double get(int k) {
+        if (this.doubles != null) {
+            return this.doubles[k];
+        }
+        if (this.floats != null) {
+            return this.floats[k];
+        }
+        if (this.shorts != null) {
+            return this.offset + this.scale * this.shorts[k];
+        }
+        return this.offset + this.scale * this.shortBuffer.get(k);
+    }
+}
@@ -0,0 +1,378 @@
+package com.cordovapluginfastcam.math;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Bilinear or bicubic interpolation in a rectilinear
+ * grid, i.e. a grid whose x values only change
+ * along one axis of the matrices and whose y
+ * values only change along the other one.
+ * Both layouts of the bundled grids are
+ * supported: x along the columns (italgeo90)
+ * or x along the rows (alto_adige), and
+ * increasing or decreasing coordinates.
+ *
+ * The cell around a point is found by
+ * arithmetic if the spacing is regular,
+ * otherwise by a binary search per axis.
+ * The heights are stored in one flat array,
+ * so a lookup doesn't allocate anything.
+ *
+ * Regular grids can also be read from the
+ * binary format written by convert_geoid_grids.js,
+ * directly from a memory-mapped file:
+ *
+ * magic "FCGEOID1" | nx, ny (int32) | x0, y0, dx, dy (float64)
+ * | heightOffset, heightScale (float64) | heights[ny][nx] (int16)
+ *
+ * All little-endian, a height is
+ * heightOffset + heightScale * value.
+ */
+public class GridIndex {
+    /**
+     * Relative to the spacing, coordinates
+     * closer than that are treated as equal
+     */
+    private static final double TOLERANCE = 1e-6;
+    private static final byte[] MAGIC = "FCGEOID1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_LENGTH = 64;
+
+    /**
+     * Strictly increasing
+     */
+    private final double[] xs;
+    private final double[] ys;
+    /**
+     * Height at (xs[i], ys[j]) is
+     * stored at j * xs.length + i
+     */
+    private final GridHeights heights;
+    private final boolean regular;
+    private final double dx;
+    private final double dy;
+    /**
+     * Only for bicubic interpolation: the 16
+     * coefficients a[k][l] of the polynomial
+     * sum(a[k][l] * t^k * u^l) of each cell,
+     * cell (i, j) starting at (j * (nx - 1) + i) * 16
+     */
+    private final double[] coefficients;
+
+    private GridIndex(double[] xs, double[] ys, GridHeights heights) {
+        this(xs, ys, heights, null);
+    }
+
+    private GridIndex(double[] xs, double[] ys, GridHeights heights, double[] coefficients) {
+        this.xs = xs;
+        this.ys = ys;
+        this.heights = heights;
+        this.coefficients = coefficients;
+        this.dx = (xs[xs.length - 1] - xs[0]) / (xs.length - 1);
+        this.dy = (ys[ys.length - 1] - ys[0]) / (ys.length - 1);
+        this.regular = isRegular(xs, this.dx) && isRegular(ys, this.dy);
+    }
+
+    /**
+     * Reads a grid in the binary format. The
+     * heights aren't copied, so the buffer can
+     * be a memory-mapped file.
+     */
+    public static GridIndex fromBinary(ByteBuffer buffer) throws IOException {
+        ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < HEADER_LENGTH) {
+            throw new IOException("Geoid grid file is too short");
+        }
+        byte[] magic = new byte[MAGIC.length];
+        data.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a geoid grid file");
+        }
+        int nx = data.getInt();
+        int ny = data.getInt();
+        double x0 = data.getDouble();
+        double y0 = data.getDouble();
+        double dx = data.getDouble();
+        double dy = data.getDouble();
+        double heightOffset = data.getDouble();
+        double heightScale = data.getDouble();
+        if (nx < 2 || ny < 2 || !(dx > 0) || !(dy > 0) || data.remaining() < (long) nx * ny * 2) {
+            throw new IOException("Corrupt geoid grid file");
+        }
+
+        double[] xs = new double[nx];
+        double[] ys = new double[ny];
+        for (int i = 0; i < nx; i += 1) {
+            xs[i] = x0 + i * dx;
+        }
+        for (int j = 0; j < ny; j += 1) {
+            ys[j] = y0 + j * dy;
+        }
+        ShortBuffer quantizedHeights = data.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        return new GridIndex(xs, ys, GridHeights.of(quantizedHeights, heightOffset, heightScale));
+    }
+
+    public static GridIndex create(double[][] gridX, double[][] gridY, double[][] gridH) {
+        return create(gridX, gridY, gridH, GridHeights.Precision.DOUBLE);
+    }
+
+    /**
+     * @return null if the grid isn't rectilinear
+     */
+    public static GridIndex create(double[][] gridX, double[][] gridY, double[][] gridH, GridHeights.Precision precision) {
+        int rows = gridX.length;
+        int cols = gridX[0].length;
+        if (rows < 2 || cols < 2) {
+            return null;
+        }
+
+        boolean xAlongColumns = Math.abs(gridX[0][1] - gridX[0][0]) > Math.abs(gridX[1][0] - gridX[0][0]);
+        int nx = xAlongColumns ? cols : rows;
+        int ny = xAlongColumns ? rows : cols;
+        double[] xs = new double[nx];
+        double[] ys = new double[ny];
+        for (int i = 0; i < nx; i += 1) {
+            xs[i] = xAlongColumns ? gridX[0][i] : gridX[i][0];
+        }
+        for (int j = 0; j < ny; j += 1) {
+            ys[j] = xAlongColumns ? gridY[j][0] : gridY[0][j];
+        }
+        if (!isStrictlyMonotonic(xs) || !isStrictlyMonotonic(ys)) {
+            return null;
+        }
+
+        double xTolerance = TOLERANCE * Math.abs(xs[1] - xs[0]);
+        double yTolerance = TOLERANCE * Math.abs(ys[1] - ys[0]);
+        for (int row = 0; row < rows; row += 1) {
+            if (gridX[row].length != cols || gridY[row].length != cols || gridH[row].length != cols) {
+                return null;
+            }
+            for (int col = 0; col < cols; col += 1) {
+                double x = xs[xAlongColumns ? col : row];
+                double y = ys[xAlongColumns ? row : col];
+                if (Math.abs(gridX[row][col] - x) > xTolerance || Math.abs(gridY[row][col] - y) > yTolerance) {
+                    return null;
+                }
+            }
+        }
+
+        // Store both axes in increasing order
+        boolean flipX = xs[1] < xs[0];
+        boolean flipY = ys[1] < ys[0];
+        double[] sortedXs = new double[nx];
+        double[] sortedYs = new double[ny];
+        double[] heights = new double[nx * ny];
+        for (int i = 0; i < nx; i += 1) {
+            sortedXs[i] = xs[flipX ? nx - 1 - i : i];
+        }
+        for (int j = 0; j < ny; j += 1) {
+            sortedYs[j] = ys[flipY ? ny - 1 - j : j];
+        }
+        for (int j = 0; j < ny; j += 1) {
+            int sourceJ = flipY ? ny - 1 - j : j;
+            for (int i = 0; i < nx; i += 1) {
+                int sourceI = flipX ? nx - 1 - i : i;
+                heights[j * nx + i] = xAlongColumns ? gridH[sourceJ][sourceI] : gridH[sourceI][sourceJ];
+            }
+        }
+        return new GridIndex(sortedXs, sortedYs, GridHeights.of(heights, precision));
+    }
+
+    /**
+     * Returns a grid on the same heights which
+     * interpolates bicubically. The slopes at the
+     * nodes are estimated from their neighbours,
+     * so the surface is smooth across cell edges.
+     * All cells' coefficients are computed here,
+     * taking 128 bytes per cell.
+     */
+    public GridIndex withBicubic() {
+        if (this.coefficients != null) {
+            return this;
+        }
+        int nx = this.xs.length;
+        int ny = this.ys.length;
+        double[] coefficients = new double[(nx - 1) * (ny - 1) * 16];
+        // Values and slopes at the corners, indexed
+        // by the corner: 0 = (i, j), 1 = (i + 1, j),
+        // 2 = (i, j + 1), 3 = (i + 1, j + 1)
+        double[] f = new double[4];
+        double[] fx = new double[4];
+        double[] fy = new double[4];
+        double[] fxy = new double[4];
+        for (int j = 0; j < ny - 1; j += 1) {
+            double cellHeight = this.ys[j + 1] - this.ys[j];
+            for (int i = 0; i < nx - 1; i += 1) {
+                double cellWidth = this.xs[i + 1] - this.xs[i];
+                for (int corner = 0; corner < 4; corner += 1) {
+                    int ci = i + (corner & 1);
+                    int cj = j + (corner >> 1);
+                    int i0 = Math.max(ci - 1, 0);
+                    int i1 = Math.min(ci + 1, nx - 1);
+                    int j0 = Math.max(cj - 1, 0);
+                    int j1 = Math.min(cj + 1, ny - 1);
+                    double spanX = this.xs[i1] - this.xs[i0];
+                    double spanY = this.ys[j1] - this.ys[j0];
+                    f[corner] = this.height(ci, cj);
+                    // Slopes in units of the cell size
+                    fx[corner] = (this.height(i1, cj) - this.height(i0, cj)) / spanX * cellWidth;
+                    fy[corner] = (this.height(ci, j1) - this.height(ci, j0)) / spanY * cellHeight;
+                    fxy[corner] = (this.height(i1, j1) - this.height(i1, j0) - this.height(i0, j1) + this.height(i0, j0))
+                            / (spanX * spanY) * cellWidth * cellHeight;
+                }
+                computeCoefficients(f, fx, fy, fxy, coefficients, (j * (nx - 1) + i) * 16);
+            }
+        }
+        return new GridIndex(this.xs, this.ys, this.heights, coefficients);
+    }
+
+    /**
+     * Returns a grid on the same
+     * heights without the coefficients
+     */
+    public GridIndex withBilinear() {
+        if (this.coefficients == null) {
+            return this;
+        }
+        return new GridIndex(this.xs, this.ys, this.heights);
+    }
+
+    public boolean isBicubic() {
+        return this.coefficients != null;
+    }
+
+    private double height(int i, int j) {
+        return this.heights.get(j * this.xs.length + i);
+    }
+
+    /**
+     * Solves for the bicubic polynomial with the
+     * given values and slopes at the corners,
+     * a = M * F * M^T with
+     * M = [1 0 0 0; 0 0 1 0; -3 3 -2 -1; 2 -2 1 1]
+     * F = [f00 f01 fy00 fy01; f10 f11 fy10 fy11;
+     *      fx00 fx01 fxy00 fxy01; fx10 fx11 fxy10 fxy11]
+     */
+    private static void computeCoefficients(double[] f, double[] fx, double[] fy, double[] fxy, double[] into, int offset) {
+        double[][] values = {
+                {f[0], f[2], fy[0], fy[2]},
+                {f[1], f[3], fy[1], fy[3]},
+                {fx[0], fx[2], fxy[0], fxy[2]},
+                {fx[1], fx[3], fxy[1], fxy[3]},
+        };
+        double[][] m = {
+                {1, 0, 0, 0},
+                {0, 0, 1, 0},
+                {-3, 3, -2, -1},
+                {2, -2, 1, 1},
+        };
+        for (int k = 0; k < 4; k += 1) {
+            for (int l = 0; l < 4; l += 1) {
+                double sum = 0;
+                for (int p = 0; p < 4; p += 1) {
+                    for (int q = 0; q < 4; q += 1) {
+                        sum += m[k][p] * values[p][q] * m[l][q];
+                    }
+                }
+                into[offset + k * 4 + l] = sum;
+            }
+        }
+    }
+
+    /**
+     * @return the interpolated height, or NaN
+     * if the point is outside of the grid
+     */
+    public double interpolate(double x, double y) {
+        int i = this.regular ? cellByArithmetic(this.xs, this.dx, x) : cellBySearch(this.xs, x);
+        int j = this.regular ? cellByArithmetic(this.ys, this.dy, y) : cellBySearch(this.ys, y);
+        if (i < 0 || j < 0) {
+            return Double.NaN;
+        }
+
+        int nx = this.xs.length;
+        double t = (x - this.xs[i]) / (this.xs[i + 1] - this.xs[i]);
+        double u = (y - this.ys[j]) / (this.ys[j + 1] - this.ys[j]);
+        if (this.coefficients != null) {
+            return evaluate(this.coefficients, (j * (nx - 1) + i) * 16, t, u);
+        }
+        int k = j * nx + i;
+        double h00 = this.heights.get(k);
+        double h10 = this.heights.get(k + 1);
+        double h01 = this.heights.get(k + nx);
+        double h11 = this.heights.get(k + nx + 1);
+        return (1 - t) * (1 - u) * h00 + t * (1 - u) * h10 + (1 - t) * u * h01 + t * u * h11;
+    }
+
+    /**
+     * Horner's scheme in both directions
+     */
+    private static double evaluate(double[] a, int offset, double t, double u) {
+        double result = 0;
+        for (int k = offset + 12; k >= offset; k -= 4) {
+            double row = a[k] + u * (a[k + 1] + u * (a[k + 2] + u * a[k + 3]));
+            result = result * t + row;
+        }
+        return result;
+    }
+
+    public boolean isRegular() {
+        return this.regular;
+    }
+
+    /**
+     * Index of the lower coordinate of the
+     * cell containing value, -1 if outside
+     */
+    private static int cellByArithmetic(double[] axis, double spacing, double value) {
+        int last = axis.length - 1;
+        if (!(value >= axis[0] && value <= axis[last])) {
+            // Also catches NaN
+            return -1;
+        }
+        int cell = (int) ((value - axis[0]) / spacing);
+        return Math.min(cell, last - 1);
+    }
+
+    private static int cellBySearch(double[] axis, double value) {
+        int last = axis.length - 1;
+        if (!(value >= axis[0] && value <= axis[last])) {
+            return -1;
+        }
+        int low = 0;
+        int high = last - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (axis[mid] <= value) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private static boolean isStrictlyMonotonic(double[] axis) {
+        boolean increasing = axis[1] > axis[0];
+        for (int i = 1; i < axis.length; i += 1) {
+            if (increasing ? axis[i] <= axis[i - 1] : axis[i] >= axis[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isRegular(double[] axis, double spacing) {
+        double tolerance = TOLERANCE * Math.abs(spacing);
+        for (int i = 0; i < axis.length; i += 1) {
+            if (Math.abs(axis[0] + i * spacing - axis[i]) > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -17,9 +17,19 @@ package com.cordovapluginfastcam.math;
  * along with Smile.  If not, see <https://www.gnu.org/licenses/>.
  ******************************************************************************/
 
-import java.io.Serializable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
@@ -46,53 +56,40 @@ import java.util.List;
  * instead.
  * <p>
  * By default, the query object (reference equality) is excluded from the neighborhood.
+ * <p>
+ * The tree is stored in flat primitive arrays. The primitive queries
+ * (nearestIndex, knn into buffers) don't allocate anything and can be
+ * called from several threads at once. They don't exclude any point.
+ * <p>
+ * Every node splits its points at the median of the dimension with the
+ * largest spread, so the tree is balanced and laid out implicitly like a
+ * heap: the children of node i are 2i + 1 and 2i + 2, and the points of
+ * a node are the halves of its parent's. Large subtrees are built in
+ * parallel.
+ * <p>
+ * A built tree can be saved as a snapshot and memory-mapped on the
+ * next launch instead of being built again, see writeSnapshot.
  *
  * @param <E> the type of data objects in the tree.
  *
  * @author Haifeng Li
  */
 public class KDTree <E> {
-    private static final long serialVersionUID = 2L;
-
-    /**
-     * The root in the KD-tree.
-     */
-    class Node implements Serializable {
-
-        /**
-         * Number of dataset stored in this node.
-         */
-        int count;
-        /**
-         * The smallest point index stored in this node.
-         */
-        int index;
-        /**
-         * The index of coordinate used to split this node.
-         */
-        int split;
-        /**
-         * The cutoff used to split the specific coordinate.
-         */
-        double cutoff;
-        /**
-         * The child node which values of split coordinate is less than the cutoff value.
-         */
-        Node lower;
-        /**
-         * The child node which values of split coordinate is greater than or equal to the cutoff value.
-         */
-        Node upper;
-
-        /**
-         * If the node is a leaf node.
-         */
-        boolean isLeaf() {
-            return lower == null && upper == null;
-        }
-    }
-    /**
-     * The keys of data objects.
+    /**
+     * Nodes with at most this many points are leaves
+     */
+    private static final int LEAF_SIZE = 8;
+    /**
+     * Smaller subtrees are built on one thread
+     */
+    private static final int PARALLEL_SIZE = 8192;
+    private static final ForkJoinPool buildPool = new ForkJoinPool();
+    private static final byte[] SNAPSHOT_MAGIC = "FCKDTRE1".getBytes(StandardCharsets.US_ASCII);
+    private static final int SNAPSHOT_HEADER_LENGTH = 32;
+
+    /**
+     * The keys of data objects, null if the
+     * tree was built from flat coordinates.
      */
     private double[][] keys;
     /**
@@ -100,13 +97,28 @@ public class KDTree <E> {
      */
     private E[] data;
     /**
-     * The root node of KD-Tree.
+     * The number of dimensions.
+     */
+    private final int d;
+    /**
+     * The coordinates of the points in tree order,
+     * point p at p * d to p * d + d - 1.
+     */
+    private final double[] coords;
+    /**
+     * The index in the dataset of each point in tree order.
      */
-    private Node root;
+    private final int[] index;
     /**
-     * The index of objects in each nodes.
+     * The split dimension of each node,
+     * -1 for leaves. The root is node 0.
      */
-    private int[] index;
+    private final int[] nodeSplit;
+    /**
+     * The points of the lower child are at or
+     * below the cutoff, the upper ones at or above.
+     */
+    private final double[] nodeCutoff;
 
     /**
      * Constructor.
@@ -114,24 +126,87 @@ public class KDTree <E> {
      * @param data the data objects.
      */
     public KDTree(double[][] key, E[] data) {
+        this(flatten(key), key.length > 0 ? key[0].length : 0, data);
         if (key.length != data.length) {
             throw new IllegalArgumentException("The array size of keys and data are different.");
         }
-
         this.keys = key;
+    }
+
+    /**
+     * Builds a tree for index queries only,
+     * without keeping per-point arrays.
+     * @param coords the coordinates of point i at i * d to i * d + d - 1.
+     * @param d the number of dimensions.
+     */
+    public KDTree(double[] coords, int d) {
+        this(coords.clone(), d, null);
+    }
+
+    /**
+     * @param coords reordered in place.
+     */
+    private KDTree(double[] coords, int d, E[] data) {
+        if (d <= 0 || coords.length == 0 || coords.length % d != 0) {
+            throw new IllegalArgumentException("Invalid coordinates for dimension " + d);
+        }
+        this.d = d;
         this.data = data;
+        this.coords = coords;
 
-        int n = key.length;
+        int n = coords.length / d;
         index = new int[n];
         for (int i = 0; i < n; i++) {
             index[i] = i;
         }
 
+        nodeSplit = new int[nodeCount(n)];
+        nodeCutoff = new double[nodeSplit.length];
+        // Also the nodes below leaves, which are never visited
+        Arrays.fill(nodeSplit, -1);
+
         // Build the tree
-        int d = keys[0].length;
-        double[] lowerBound = new double[d];
-        double[] upperBound = new double[d];
-        root = buildNode(0, n, lowerBound, upperBound);
+        if (n <= PARALLEL_SIZE) {
+            buildNode(0, 0, n);
+        } else {
+            buildPool.invoke(new BuildTask(0, 0, n));
+        }
+    }
+
+    /**
+     * A tree read from a snapshot.
+     */
+    private KDTree(int d, double[] coords, int[] index, int[] nodeSplit, double[] nodeCutoff) {
+        this.d = d;
+        this.coords = coords;
+        this.index = index;
+        this.nodeSplit = nodeSplit;
+        this.nodeCutoff = nodeCutoff;
+    }
+
+    /**
+     * Returns the size of the node arrays for n points.
+     */
+    private static int nodeCount(int n) {
+        // The subtrees of a level differ by at most one point,
+        // so all leaves are on the levels depth and above
+        int depth = 0;
+        while ((n - 1 >> depth) + 1 > LEAF_SIZE) {
+            depth++;
+        }
+        return (1 << depth + 1) - 1;
+    }
+
+    private static double[] flatten(double[][] key) {
+        if (key.length == 0) {
+            throw new IllegalArgumentException("Empty dataset");
+        }
+        int d = key[0].length;
+        double[] coords = new double[key.length * d];
+        for (int i = 0; i < key.length; i++) {
+            System.arraycopy(key[i], 0, coords, i * d, d);
+        }
+        return coords;
     }
 
     @Override
@@ -139,179 +214,517 @@ public class KDTree <E> {
         return "KD-Tree";
     }
 
+    /**
+     * Builds the subtrees of large nodes in parallel.
+     * Subtrees only touch their own nodes and points.
+     */
+    private class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int node;
+        private final int begin;
+        private final int end;
+
+        BuildTask(int node, int begin, int end) {
+            this.node = node;
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.begin <= PARALLEL_SIZE) {
+                buildNode(this.node, this.begin, this.end);
+                return;
+            }
+            int middle = splitNode(this.node, this.begin, this.end);
+            if (middle < 0) {
+                return;
+            }
+            invokeAll(new BuildTask(2 * this.node + 1, this.begin, middle),
+                    new BuildTask(2 * this.node + 2, middle, this.end));
+        }
+    }
+
     /**
      * Builds a sub-tree.
+     * @param node the root of the subtree.
      * @param begin the beginning index of samples for the subtree (inclusive).
      * @param end the ending index of samples for the subtree (exclusive).
-     * @param lowerBound the work space of lower bound of each dimension of samples.
-     * @param upperBound the work space of upper bound of each dimension of samples.
-     */
-    private Node buildNode(int begin, int end, double[] lowerBound, double[] upperBound) {
-        int d = keys[0].length;
-
-        // Allocate the node
-        Node node = new Node();
-
-        // Fill in basic info
-        node.count = end - begin;
-        node.index = begin;
-
-        // Calculate the bounding box
-        double[] key = keys[index[begin]];
-        System.arraycopy(key, 0, lowerBound, 0, d);
-        System.arraycopy(key, 0, upperBound, 0, d);
-
-        for (int i = begin + 1; i < end; i++) {
-            key = keys[index[i]];
-            for (int j = 0; j < d; j++) {
-                double c = key[j];
-                if (lowerBound[j] > c) {
-                    lowerBound[j] = c;
+     */
+    private void buildNode(int node, int begin, int end) {
+        int middle = splitNode(node, begin, end);
+        if (middle >= 0) {
+            buildNode(2 * node + 1, begin, middle);
+            buildNode(2 * node + 2, middle, end);
+        }
+    }
+
+    /**
+     * Chooses the split of a node and partitions its points
+     * around the median.
+     * @return the first point of the upper child, -1 for a leaf.
+     */
+    private int splitNode(int node, int begin, int end) {
+        nodeSplit[node] = -1;
+        if (end - begin <= LEAF_SIZE) {
+            return -1;
+        }
+
+        // Find the dimension with the largest spread
+        double maxSpread = -1;
+        int split = 0;
+        for (int j = 0; j < d; j++) {
+            double lower = coords[begin * d + j];
+            double upper = lower;
+            for (int p = begin + 1; p < end; p++) {
+                double c = coords[p * d + j];
+                if (lower > c) {
+                    lower = c;
                 }
-                if (upperBound[j] < c) {
-                    upperBound[j] = c;
+                if (upper < c) {
+                    upper = c;
                 }
             }
-        }
-
-        // Calculate bounding box stats
-        double maxRadius = -1;
-        for (int i = 0; i < d; i++) {
-            double radius = (upperBound[i] - lowerBound[i]) / 2;
-            if (radius > maxRadius) {
-                maxRadius = radius;
-                node.split = i;
-                node.cutoff = (upperBound[i] + lowerBound[i]) / 2;
+            if (upper - lower > maxSpread) {
+                maxSpread = upper - lower;
+                split = j;
             }
         }
 
         // If the max spread is 0, make this a leaf node
-        if (MathUtil.isZero(maxRadius, 1E-8)) {
-            node.lower = node.upper = null;
-            return node;
-        }
-
-        // Partition the data around the midpoint in this dimension. The
-        // partitioning is done in-place by iterating from left-to-right and
-        // right-to-left in the same way as quicksort.
-        int i1 = begin, i2 = end - 1, size = 0;
-        while (i1 <= i2) {
-            boolean i1Good = (keys[index[i1]][node.split] < node.cutoff);
-            boolean i2Good = (keys[index[i2]][node.split] >= node.cutoff);
-
-            if (!i1Good && !i2Good) {
-                int temp = index[i1];
-                index[i1] = index[i2];
-                index[i2] = temp;
-                i1Good = i2Good = true;
-            }
+        if (MathUtil.isZero(maxSpread, 1E-8)) {
+            return -1;
+        }
 
-            if (i1Good) {
-                i1++;
-                size++;
+        int middle = (begin + end) >>> 1;
+        select(split, begin, end, middle);
+        nodeSplit[node] = split;
+        nodeCutoff[node] = coords[middle * d + split];
+        return middle;
+    }
+
+    /**
+     * Moves the k-th point along the dimension to position k,
+     * with the points at or below it before and the points
+     * at or above it after, by quickselect.
+     */
+    private void select(int split, int begin, int end, int k) {
+        int lo = begin, hi = end - 1;
+        while (lo < hi) {
+            double a = coords[lo * d + split];
+            double b = coords[((lo + hi) >>> 1) * d + split];
+            double c = coords[hi * d + split];
+            // Median of three as the pivot
+            double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (coords[i * d + split] < pivot) {
+                    i++;
+                }
+                while (coords[j * d + split] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
             }
 
-            if (i2Good) {
-                i2--;
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
             }
         }
+    }
 
-        // If either side is empty, make this a leaf node.
-        if (size == 0 || size == node.count) {
-            node.lower = node.upper = null;
-            return node;
+    private void swap(int p1, int p2) {
+        int temp = index[p1];
+        index[p1] = index[p2];
+        index[p2] = temp;
+        for (int j = 0, o1 = p1 * d, o2 = p2 * d; j < d; j++) {
+            double c = coords[o1 + j];
+            coords[o1 + j] = coords[o2 + j];
+            coords[o2 + j] = c;
         }
+    }
 
-        // Create the child nodes
-        node.lower = buildNode(begin, begin + size, lowerBound, upperBound);
-        node.upper = buildNode(begin + size, end, lowerBound, upperBound);
+    /**
+     * Returns a 64 bit hash of the coordinates a tree is built from,
+     * to tell whether a snapshot was built from the same points.
+     */
+    public static long hash(double[] coords, int d) {
+        long h = 0x9E3779B97F4A7C15L ^ d;
+        for (double c : coords) {
+            long bits = Double.doubleToLongBits(c);
+            bits *= 0xBF58476D1CE4E5B9L;
+            bits ^= bits >>> 31;
+            h = Long.rotateLeft(h ^ bits, 27) * 0x94D049BB133111EBL;
+        }
+        return h ^ coords.length;
+    }
 
-        return node;
+    /**
+     * Saves the tree, without keys and data objects, so
+     * readSnapshot can load it without building it again.
+     * The file is replaced atomically, so readers never
+     * see a partly written snapshot.
+     *
+     * Format, little-endian:
+     * magic "FCKDTRE1" | d, n, nodes, reserved (int32) | sourceHash (int64)
+     * | coords[n * d] | nodeCutoff[nodes] (float64) | index[n] | nodeSplit[nodes] (int32)
+     *
+     * @param sourceHash the hash of the coordinates the tree was built from.
+     */
+    public void writeSnapshot(File file, long sourceHash) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            out.setLength(0);
+            int n = index.length;
+            long length = snapshotLength(d, n, nodeSplit.length);
+            MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(SNAPSHOT_MAGIC);
+            buffer.putInt(d).putInt(n).putInt(nodeSplit.length).putInt(0);
+            buffer.putLong(sourceHash);
+            buffer.asDoubleBuffer().put(coords).put(nodeCutoff);
+            buffer.position(buffer.position() + (coords.length + nodeCutoff.length) * 8);
+            buffer.asIntBuffer().put(index).put(nodeSplit);
+            buffer.force();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Couldn't write the KD-tree snapshot " + file);
+        }
     }
 
     /**
-     * Returns the nearest neighbors of the given target starting from the give
-     * tree node.
+     * Loads a tree saved by writeSnapshot. The tree has no keys
+     * or data objects, queries return indices in the dataset.
+     * The mapping is copied into arrays in bulk instead of being
+     * queried in place: every index and split has to be checked
+     * once anyway, and array reads keep queries as fast as on
+     * a tree built in memory.
      *
-     * @param q    the query key.
-     * @param node the root of subtree.
-     * @param neighbor the current nearest neighbor.
+     * @param sourceHash the hash of the coordinates the tree should be built from.
+     * @throws IOException if the snapshot is corrupt or was built from other points.
      */
-    private void search(double[] q, Node node, NeighborBuilder<double[], E> neighbor) {
-        if (node.isLeaf()) {
-            // look at all the instances in this leaf
-            for (int idx = node.index; idx < node.index + node.count; idx++) {
-                int i = index[idx];
-                if (q != keys[i]) {
-                    double distance = MathUtil.distance(q, keys[i]);
-                    if (distance < neighbor.distance) {
-                        neighbor.index = i;
-                        neighbor.distance = distance;
-                    }
-                }
+    public static KDTree<Void> readSnapshot(File file, long sourceHash) throws IOException {
+        ByteBuffer buffer;
+        try (FileInputStream in = new FileInputStream(file)) {
+            buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < SNAPSHOT_HEADER_LENGTH) {
+            throw new IOException("KD-tree snapshot is truncated");
+        }
+        byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, SNAPSHOT_MAGIC)) {
+            throw new IOException("Not a KD-tree snapshot");
+        }
+        int d = buffer.getInt();
+        int n = buffer.getInt();
+        int nodes = buffer.getInt();
+        buffer.getInt();
+        if (buffer.getLong() != sourceHash) {
+            throw new IOException("KD-tree snapshot was built from other points");
+        }
+        if (d <= 0 || n <= 0 || nodes != nodeCount(n) || file.length() != snapshotLength(d, n, nodes)) {
+            throw new IOException("Corrupt KD-tree snapshot");
+        }
+
+        double[] coords = new double[n * d];
+        double[] nodeCutoff = new double[nodes];
+        int[] index = new int[n];
+        int[] nodeSplit = new int[nodes];
+        buffer.asDoubleBuffer().get(coords).get(nodeCutoff);
+        buffer.position(buffer.position() + (coords.length + nodes) * 8);
+        buffer.asIntBuffer().get(index).get(nodeSplit);
+
+        // Queries must not run out of the arrays
+        for (int i : index) {
+            if (i < 0 || i >= n) {
+                throw new IOException("Corrupt KD-tree snapshot");
             }
-        } else {
-            Node nearer, further;
-            double diff = q[node.split] - node.cutoff;
-            if (diff < 0) {
-                nearer = node.lower;
-                further = node.upper;
-            } else {
-                nearer = node.upper;
-                further = node.lower;
+        }
+        for (int node = 0; node < nodes; node++) {
+            // The last level has no children
+            int maxSplit = 2 * node + 1 < nodes ? d - 1 : -1;
+            if (nodeSplit[node] < -1 || nodeSplit[node] > maxSplit) {
+                throw new IOException("Corrupt KD-tree snapshot");
             }
+        }
+        return new KDTree<>(d, coords, index, nodeSplit, nodeCutoff);
+    }
 
-            search(q, nearer, neighbor);
+    private static long snapshotLength(int d, int n, int nodes) {
+        return SNAPSHOT_HEADER_LENGTH + ((long) n * d + nodes) * 8 + ((long) n + nodes) * 4;
+    }
 
-            // now look in further half
-            if (neighbor.distance >= Math.abs(diff)) {
-                search(q, further, neighbor);
+    /**
+     * Returns the number of points in the tree.
+     */
+    public int size() {
+        return index.length;
+    }
+
+    /**
+     * Returns the index in the dataset of the point
+     * nearest to (x, y). Only for 2-D trees.
+     * @return -1 if x or y isn't finite or no point has a finite distance.
+     */
+    public int nearestIndex(double x, double y) {
+        if (d != 2) {
+            throw new IllegalArgumentException("The tree has " + d + " dimensions");
+        }
+        if (!isFinite(x) || !isFinite(y)) {
+            return -1;
+        }
+        int p = nearest2(x, y, 0, 0, index.length, -1, Double.POSITIVE_INFINITY);
+        return p < 0 ? -1 : index[p];
+    }
+
+    /**
+     * Returns the index in the dataset of
+     * the point nearest to q.
+     * @return -1 if q isn't finite or no point has a finite distance.
+     */
+    public int nearestIndex(double[] q) {
+        for (double c : q) {
+            if (!isFinite(c)) {
+                return -1;
             }
         }
+        int p = nearest(q, null, 0, 0, index.length, -1, Double.POSITIVE_INFINITY);
+        return p < 0 ? -1 : index[p];
+    }
+
+    private static boolean isFinite(double value) {
+        // Also false for NaN
+        return Math.abs(value) <= Double.MAX_VALUE;
     }
 
     /**
-     * Returns (in the supplied heap object) the k nearest
-     * neighbors of the given target starting from the give
-     * tree node.
+     * Searches the nearest point of the subtree.
+     * The best point so far is passed in and the
+     * new best point returned, so nothing has
+     * to be allocated.
      *
-     * @param q    the query key.
-     * @param node the root of subtree.
-     * @param heap the heap object to store/update the kNNs found during the search.
+     * @return the nearest point (tree order).
      */
-    private void search(double[] q, Node node, HeapSelect<NeighborBuilder<double[], E>> heap) {
-        if (node.isLeaf()) {
+    private int nearest2(double x, double y, int node, int begin, int end, int best, double bestDistance) {
+        int split = nodeSplit[node];
+        if (split < 0) {
             // look at all the instances in this leaf
-            for (int idx = node.index; idx < node.index + node.count; idx++) {
-                int i = index[idx];
-                if (q != keys[i]) {
-                    double distance = MathUtil.distance(q, keys[i]);
-                    NeighborBuilder<double[], E> datum = heap.peek();
-                    if (distance < datum.distance) {
-                        datum.distance = distance;
-                        datum.index = i;
-                        heap.heapify();
-                    }
+            for (int p = begin; p < end; p++) {
+                double dx = coords[2 * p] - x;
+                double dy = coords[2 * p + 1] - y;
+                double distance = dx * dx + dy * dy;
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = p;
                 }
             }
-        } else {
-            Node nearer, further;
-            double diff = q[node.split] - node.cutoff;
-            if (diff < 0) {
-                nearer = node.lower;
-                further = node.upper;
-            } else {
-                nearer = node.upper;
-                further = node.lower;
+            return best;
+        }
+
+        double diff = (split == 0 ? x : y) - nodeCutoff[node];
+        int middle = (begin + end) >>> 1;
+        boolean lower = diff < 0;
+        best = nearest2(x, y, lower ? 2 * node + 1 : 2 * node + 2, lower ? begin : middle, lower ? middle : end, best, bestDistance);
+
+        // now look in further half
+        double distance = Double.POSITIVE_INFINITY;
+        if (best >= 0) {
+            double dx = coords[2 * best] - x;
+            double dy = coords[2 * best + 1] - y;
+            distance = dx * dx + dy * dy;
+        }
+        if (distance >= diff * diff) {
+            best = nearest2(x, y, lower ? 2 * node + 2 : 2 * node + 1, lower ? middle : begin, lower ? end : middle, best, distance);
+        }
+        return best;
+    }
+
+    /**
+     * Like nearest2 for any dimension.
+     * @param exclude a key not to return, compared by reference.
+     * @return the nearest point (tree order), -1 if none.
+     */
+    private int nearest(double[] q, double[] exclude, int node, int begin, int end, int best, double bestDistance) {
+        int split = nodeSplit[node];
+        if (split < 0) {
+            // look at all the instances in this leaf
+            for (int p = begin; p < end; p++) {
+                if (exclude != null && keys != null && keys[index[p]] == exclude) {
+                    continue;
+                }
+                double distance = squaredDistance(q, p);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = p;
+                }
             }
+            return best;
+        }
 
-            search(q, nearer, heap);
+        double diff = q[split] - nodeCutoff[node];
+        int middle = (begin + end) >>> 1;
+        boolean lower = diff < 0;
+        best = nearest(q, exclude, lower ? 2 * node + 1 : 2 * node + 2, lower ? begin : middle, lower ? middle : end, best, bestDistance);
 
-            // now look in further half
-            if (heap.peek().distance >= Math.abs(diff)) {
-                search(q, further, heap);
+        // now look in further half
+        double distance = best < 0 ? Double.POSITIVE_INFINITY : squaredDistance(q, best);
+        if (distance >= diff * diff) {
+            best = nearest(q, exclude, lower ? 2 * node + 2 : 2 * node + 1, lower ? middle : begin, lower ? end : middle, best, distance);
+        }
+        return best;
+    }
+
+    private double squaredDistance(double[] q, int p) {
+        double sum = 0;
+        int offset = p * d;
+        for (int j = 0; j < d; j++) {
+            double diff = coords[offset + j] - q[j];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * Writes the k nearest neighbors of (x, y) into the given
+     * buffers, nearest first. Only for 2-D trees.
+     * @param indices receives the indices in the dataset, at least k long.
+     * @param distances receives the distances, at least k long.
+     * @return the number of neighbors found, min(k, size()).
+     */
+    public int knn(double x, double y, int k, int[] indices, double[] distances) {
+        if (d != 2) {
+            throw new IllegalArgumentException("The tree has " + d + " dimensions");
+        }
+        checkKnnBuffers(k, indices, distances);
+        int count = knn2(x, y, 0, 0, index.length, k, indices, distances, 0);
+        return finishKnn(count, indices, distances);
+    }
+
+    /**
+     * Like knn(x, y, ...) for any dimension.
+     */
+    public int knn(double[] q, int k, int[] indices, double[] distances) {
+        checkKnnBuffers(k, indices, distances);
+        int count = knn(q, null, 0, 0, index.length, k, indices, distances, 0);
+        return finishKnn(count, indices, distances);
+    }
+
+    private void checkKnnBuffers(int k, int[] indices, double[] distances) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("Invalid k: " + k);
+        }
+        if (indices.length < k || distances.length < k) {
+            throw new IllegalArgumentException("The buffers are shorter than k");
+        }
+    }
+
+    /**
+     * Turns the points into dataset indices
+     * and the squared distances into distances.
+     */
+    private int finishKnn(int count, int[] indices, double[] distances) {
+        for (int i = 0; i < count; i++) {
+            indices[i] = index[indices[i]];
+            distances[i] = Math.sqrt(distances[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Searches the k nearest points of the subtree. The points
+     * found so far are kept in indices (tree order) sorted by
+     * their squared distances, count of them.
+     * @return the new count.
+     */
+    private int knn2(double x, double y, int node, int begin, int end, int k, int[] indices, double[] distances, int count) {
+        int split = nodeSplit[node];
+        if (split < 0) {
+            // look at all the instances in this leaf
+            for (int p = begin; p < end; p++) {
+                double dx = coords[2 * p] - x;
+                double dy = coords[2 * p + 1] - y;
+                count = insert(p, dx * dx + dy * dy, k, indices, distances, count);
+            }
+            return count;
+        }
+
+        double diff = (split == 0 ? x : y) - nodeCutoff[node];
+        int middle = (begin + end) >>> 1;
+        boolean lower = diff < 0;
+        count = knn2(x, y, lower ? 2 * node + 1 : 2 * node + 2, lower ? begin : middle, lower ? middle : end, k, indices, distances, count);
+
+        // now look in further half
+        if (count < k || distances[k - 1] >= diff * diff) {
+            count = knn2(x, y, lower ? 2 * node + 2 : 2 * node + 1, lower ? middle : begin, lower ? end : middle, k, indices, distances, count);
+        }
+        return count;
+    }
+
+    /**
+     * Like knn2 for any dimension.
+     * @param exclude a key not to return, compared by reference.
+     */
+    private int knn(double[] q, double[] exclude, int node, int begin, int end, int k, int[] indices, double[] distances, int count) {
+        int split = nodeSplit[node];
+        if (split < 0) {
+            // look at all the instances in this leaf
+            for (int p = begin; p < end; p++) {
+                if (exclude != null && keys != null && keys[index[p]] == exclude) {
+                    continue;
+                }
+                count = insert(p, squaredDistance(q, p), k, indices, distances, count);
             }
+            return count;
+        }
+
+        double diff = q[split] - nodeCutoff[node];
+        int middle = (begin + end) >>> 1;
+        boolean lower = diff < 0;
+        count = knn(q, exclude, lower ? 2 * node + 1 : 2 * node + 2, lower ? begin : middle, lower ? middle : end, k, indices, distances, count);
+
+        // now look in further half
+        if (count < k || distances[k - 1] >= diff * diff) {
+            count = knn(q, exclude, lower ? 2 * node + 2 : 2 * node + 1, lower ? middle : begin, lower ? end : middle, k, indices, distances, count);
+        }
+        return count;
+    }
+
+    /**
+     * Inserts the point into the sorted neighbors if it is one
+     * of the k nearest. Equal distances are sorted by the
+     * index in the dataset.
+     * @return the new count.
+     */
+    private int insert(int p, double distance, int k, int[] indices, double[] distances, int count) {
+        if (count == k && !isNearer(p, distance, indices[k - 1], distances[k - 1])) {
+            return count;
+        }
+        int i = count < k ? count++ : k - 1;
+        while (i > 0 && isNearer(p, distance, indices[i - 1], distances[i - 1])) {
+            indices[i] = indices[i - 1];
+            distances[i] = distances[i - 1];
+            i--;
         }
+        indices[i] = p;
+        distances[i] = distance;
+        return count;
+    }
+
+    private boolean isNearer(int p, double distance, int other, double otherDistance) {
+        return distance < otherDistance || (distance == otherDistance && index[p] < index[other]);
     }
 
     /**
@@ -323,44 +736,45 @@ public class KDTree <E> {
      * @param radius the radius of search range from target.
      * @param neighbors the list of found neighbors in the range.
      */
-    private void search(double[] q, Node node, double radius, List<Neighbor<double[], E>> neighbors) {
-        if (node.isLeaf()) {
+    private void search(double[] q, int node, int begin, int end, double radius, List<Neighbor<double[], E>> neighbors) {
+        int split = nodeSplit[node];
+        if (split < 0) {
             // look at all the instances in this leaf
-            for (int idx = node.index; idx < node.index + node.count; idx++) {
-                int i = index[idx];
-                if (q != keys[i]) {
-                    double distance = MathUtil.distance(q, keys[i]);
+            for (int p = begin; p < end; p++) {
+                int i = index[p];
+                if (keys == null || q != keys[i]) {
+                    double distance = Math.sqrt(squaredDistance(q, p));
                     if (distance <= radius) {
-                        neighbors.add(new Neighbor<>(keys[i], data[i], i, distance));
+                        neighbors.add(toNeighbor(p, distance));
                     }
                 }
             }
         } else {
-            Node nearer, further;
-            double diff = q[node.split] - node.cutoff;
-            if (diff < 0) {
-                nearer = node.lower;
-                further = node.upper;
-            } else {
-                nearer = node.upper;
-                further = node.lower;
-            }
+            double diff = q[split] - nodeCutoff[node];
+            int middle = (begin + end) >>> 1;
+            boolean lower = diff < 0;
 
-            search(q, nearer, radius, neighbors);
+            search(q, lower ? 2 * node + 1 : 2 * node + 2, lower ? begin : middle, lower ? middle : end, radius, neighbors);
 
             // now look in further half
             if (radius >= Math.abs(diff)) {
-                search(q, further, radius, neighbors);
+                search(q, lower ? 2 * node + 2 : 2 * node + 1, lower ? middle : begin, lower ? end : middle, radius, neighbors);
             }
         }
     }
 
+    private Neighbor<double[], E> toNeighbor(int p, double distance) {
+        int i = index[p];
+        double[] key = keys != null ? keys[i] : Arrays.copyOfRange(coords, p * d, p * d + d);
+        return new Neighbor<>(key, data != null ? data[i] : null, i, distance);
+    }
+
     public Neighbor<double[], E> nearest(double[] q) {
-        NeighborBuilder<double[], E> neighbor = new NeighborBuilder<>();
-        search(q, root, neighbor);
-        neighbor.key = keys[neighbor.index];
-        neighbor.value = data[neighbor.index];
-        return neighbor.toNeighbor();
+        int p = nearest(q, q, 0, 0, index.length, -1, Double.POSITIVE_INFINITY);
+        if (p < 0) {
+            return null;
+        }
+        return toNeighbor(p, Math.sqrt(squaredDistance(q, p)));
     }
 
     public Neighbor<double[], E>[] knn(double[] q, int k) {
@@ -368,24 +782,24 @@ public class KDTree <E> {
             throw new IllegalArgumentException("Invalid k: " + k);
         }
 
-        if (k > keys.length) {
+        if (k > index.length) {
             throw new IllegalArgumentException("Neighbor array length is larger than the dataset size");
         }
 
-        HeapSelect<NeighborBuilder<double[], E>> heap = new HeapSelect<>(k);
-        for (int i = 0; i < k; i++) {
-            heap.add(new NeighborBuilder<>());
-        }
+        int[] points = new int[k];
+        double[] distances = new double[k];
+        int count = knn(q, q, 0, 0, index.length, k, points, distances, 0);
 
-        search(q, root, heap);
-        heap.sort();
+        Neighbor<double[], E>[] neighbors = newNeighbors(count);
+        for (int i = 0; i < count; i++) {
+            neighbors[i] = toNeighbor(points[i], Math.sqrt(distances[i]));
+        }
+        return neighbors;
+    }
 
-        return Arrays.stream(heap.toArray())
-                .map(neighbor -> {
-                    neighbor.key = keys[neighbor.index];
-                    neighbor.value = data[neighbor.index];
-                    return neighbor.toNeighbor();
-                }).toArray(Neighbor[]::new);
+    @SuppressWarnings("unchecked")
+    private Neighbor<double[], E>[] newNeighbors(int length) {
+        return (Neighbor<double[], E>[]) new Neighbor<?, ?>[length];
     }
 
     public void range(double[] q, double radius, List<Neighbor<double[], E>> neighbors) {
@@ -393,6 +807,6 @@ public class KDTree <E> {
             throw new IllegalArgumentException("Invalid radius: " + radius);
         }
 
-        search(q, root, radius, neighbors);
+        search(q, 0, 0, index.length, radius, neighbors);
     }
-}
\ No newline at end of file
+}
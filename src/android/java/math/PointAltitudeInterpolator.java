@@ -2,247 +2,286 @@ package com.cordovapluginfastcam.math;
 import android.util.Log;
 
 import com.cordovapluginfastcam.UTM;
-import com.cordovapluginfastcam.WGS84;
 
-public class PointAltitudeInterpolator {
-    private static class GridPoint {
-        /**
-         * Easting
-         */
-        private  double x;
-        /**
-         * Northing
-         */
-        private double y;
-        private double h;
-
-        public GridPoint(double x, double y, double h) {
-            this.x = x;
-            this.y  = y;
-            this.h = h;
-        }
-
-        public double getX() {
-            return this.x;
-        }
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-        public double getY() {
-            return y;
-        }
-
-        public double getH() {
-            return h;
+public class PointAltitudeInterpolator {
+    public static class DataNotInGridFormException extends Exception {
+        public DataNotInGridFormException() {
+            super("Data is not in grid form. There must be the same number of rows and columns. The numbers of rows and columns must be the even.");
         }
     }
 
-    private static class GridCell {
-        private double centroidX;
-        private double centroidY;
-        /**
-         * 4 points in the corners of the cell
-         */
-        private GridPoint[] points;
-
-        public GridCell(GridPoint[] points) {
-            this.points = points;
-            this.sortPoints();
-            this.calculateCentroid();
-        }
-
-
-        private void sortPoints() {
-            double minX = Integer.MAX_VALUE;
-            double minY = Integer.MAX_VALUE;
-            double maxX = 0;
-            double maxY = 0;
-
-            for (GridPoint point : this.points) {
-                if (point.getX() < minX) {
-                    minX = point.getX();
-                }
-                if (point.getX() > maxX) {
-                    maxX = point.getX();
-                }
-                if (point.getY() < minY) {
-                    minY = point.getY();
-                }
-                if (point.getY() > maxY) {
-                    maxY = point.getY();
-                }
-            }
 
-            GridPoint pointOne = null;
-            GridPoint pointTwo = null;
-            GridPoint pointThree = null;
-            GridPoint pointFour = null;
-
-            for (int pointIdx = 0; pointIdx < this.points.length; pointIdx += 1) {
-                GridPoint currPoint = this.points[pointIdx];
-                if (currPoint.getX() == minX && currPoint.getY() == maxY) {
-                    pointOne = currPoint;
-                }
-                if (currPoint.getX() == maxX && currPoint.getY() == maxY) {
-                    pointTwo = currPoint;
-                }
-                if (currPoint.getX() == minX && currPoint.getY() == minY) {
-                    pointThree = currPoint;
-                }
-                if (currPoint.getX() == maxX && currPoint.getY() == minY) {
-                    pointFour = currPoint;
-                }
-            }
+    private static final String TAG = "GpsPointAltitudeInterpolator";
+    /**
+     * Batches up to that size are
+     * interpolated on one thread
+     */
+    private static final int BATCH_SPLIT_SIZE = 2048;
+    private static final ForkJoinPool batchPool = new ForkJoinPool();
+    /**
+     * Where the receiver will be in that many
+     * seconds is prefetched from tiled grids
+     */
+    private static final int[] PREFETCH_SECONDS = {0, 15, 30, 60, 120};
+    private static final double METERS_PER_DEGREE = 111320;
+    /**
+     * Used for rectilinear grids,
+     * like the bundled ones
+     */
+    private GridIndex gridIndex;
+    /**
+     * Only built for irregular grids,
+     * finds the cell by its centroid
+     */
+    private GridCells cells;
+    private KDTree<Void> tree;
+    /**
+     * Used for models read tile by tile
+     */
+    private TiledGrid tiledGrid;
 
-            if (pointOne == null || pointTwo == null || pointThree == null || pointFour == null) {
-                Log.d(TAG, "Error while sorting points, as one or more points did not match the maxima/minima");
-                return;
-            }
+    public static enum GridCoordinatesType  {UTM, WGS84}
+    /**
+     * Bicubic interpolation is smooth across
+     * cell edges, but takes 128 bytes of
+     * coefficients per cell. Only used for
+     * rectilinear grids.
+     */
+    public static enum Interpolation {BILINEAR, BICUBIC}
+    private GridCoordinatesType coordinatesType = GridCoordinatesType.UTM;
 
-            this.points[0] = pointOne;
-            this.points[1] = pointTwo;
-            this.points[2] = pointThree;
-            this.points[3] = pointFour;
-        }
+    public PointAltitudeInterpolator(double[][] gridX, double[][] gridY, double[][] gridH) throws DataNotInGridFormException {
+        this(gridX, gridY, gridH, GridCoordinatesType.UTM);
+    }
 
+    public PointAltitudeInterpolator(double[][] gridX, double[][] gridY, double[][] gridH, GridCoordinatesType coordinatesType) throws DataNotInGridFormException {
+        this(gridX, gridY, gridH, coordinatesType, GridHeights.Precision.DOUBLE);
+    }
 
-        private void calculateCentroid() {
-            double x = 0;
-            double y = 0;
-            for (GridPoint point : this.points) {
-                x += point.getX();
-                y += point.getY();
-            }
-            x = x / this.points.length;
-            y = y / this.points.length;
-            this.centroidX = x;
-            this.centroidY = y;
-        }
+    /**
+     * @param precision how the heights are stored,
+     *                  lower precisions save memory
+     *                  for large grids
+     */
+    public PointAltitudeInterpolator(double[][] gridX, double[][] gridY, double[][] gridH, GridCoordinatesType coordinatesType, GridHeights.Precision precision) throws DataNotInGridFormException {
+        this(gridX, gridY, gridH, coordinatesType, precision, null);
+    }
 
-        public double getCentroidX() {
-            return centroidX;
+    /**
+     * @param treeCacheDir where the KD-tree of an irregular
+     *                     grid is saved, so it is only built
+     *                     once, or null to always build it
+     */
+    public PointAltitudeInterpolator(double[][] gridX, double[][] gridY, double[][] gridH, GridCoordinatesType coordinatesType, GridHeights.Precision precision, File treeCacheDir) throws DataNotInGridFormException {
+        this.coordinatesType = coordinatesType;
+        this.gridIndex = GridIndex.create(gridX, gridY, gridH, precision);
+        if (this.gridIndex == null) {
+            Log.d(TAG, "Grid is not rectilinear, using a KD-tree");
+            this.createKDTree(gridX, gridY, gridH, precision, treeCacheDir);
         }
+    }
 
-        public double getCentroidY() {
-            return centroidY;
-        }
+    /**
+     * Uses an already loaded grid,
+     * e.g. from a binary grid file
+     */
+    public PointAltitudeInterpolator(GridIndex gridIndex, GridCoordinatesType coordinatesType) {
+        this.coordinatesType = coordinatesType;
+        this.gridIndex = gridIndex;
+    }
 
-        public GridPoint[] getPoints() {
-            return points;
-        }
+    /**
+     * Reads the grid tile by tile, see TiledGrid
+     */
+    public PointAltitudeInterpolator(TiledGrid tiledGrid, GridCoordinatesType coordinatesType) {
+        this.coordinatesType = coordinatesType;
+        this.tiledGrid = tiledGrid;
+    }
 
-        public String toWgsString() {
-            String str = "\n\nlongitude,latitude,alt\n";
-            WGS84 centroidWgs = new WGS84(new UTM(32, 'T', this.centroidX, this.centroidY));
-            str += centroidWgs.getLongitude() + "," + centroidWgs.getLatitude() + "," + "0" + "\n";
-            for (GridPoint point : points) {
-                WGS84 pointWgs = new WGS84(new UTM(32, 'T', point.getX(), point.getY()));
-                str += pointWgs.getLongitude() + "," + pointWgs.getLatitude() + "," + point.getH() + "\n";
+    /**
+     * Returns an interpolator for the same grid
+     * using the given interpolation
+     */
+    public PointAltitudeInterpolator withInterpolation(Interpolation interpolation) {
+        if (this.tiledGrid != null) {
+            if (interpolation == Interpolation.BICUBIC) {
+                Log.d(TAG, "Grid is tiled, bicubic interpolation is not supported");
             }
-
-            return str;
+            return this;
         }
-
-        public String toUtmString() {
-            String str = "\n";
-            str += this.centroidX + "," + this.centroidY + "," + "0" + "\n";
-            for (GridPoint point : points) {
-                str += point.getX() + "," + point.getY() + "," + point.getH() + "\n";
+        if (this.gridIndex == null) {
+            if (interpolation == Interpolation.BICUBIC) {
+                Log.d(TAG, "Grid is not rectilinear, bicubic interpolation is not supported");
             }
-
-            return str;
+            return this;
         }
-    }
-
-    public static class DataNotInGridFormException extends Exception {
-        public DataNotInGridFormException() {
-            super("Data is not in grid form. There must be the same number of rows and columns. The numbers of rows and columns must be the even.");
+        if ((interpolation == Interpolation.BICUBIC) == this.gridIndex.isBicubic()) {
+            return this;
         }
+        GridIndex gridIndex = interpolation == Interpolation.BICUBIC ? this.gridIndex.withBicubic() : this.gridIndex.withBilinear();
+        return new PointAltitudeInterpolator(gridIndex, this.coordinatesType);
     }
 
+    private void createKDTree(double[][] gridX, double[][] gridY, double[][] gridH, GridHeights.Precision precision, File treeCacheDir) throws  DataNotInGridFormException {
+        this.cells = GridCells.create(gridX, gridY, gridH, precision);
+        int numCells = this.cells.getCellCount();
 
-    private static final String TAG = "GpsPointAltitudeInterpolator";
-    private KDTree<GridCell> tree;
-
-    public static enum GridCoordinatesType  {UTM, WGS84}
-    private GridCoordinatesType coordinatesType = GridCoordinatesType.UTM;
-
-    public PointAltitudeInterpolator(double[][] gridX, double[][] gridY, double[][] gridH) throws DataNotInGridFormException {
-        this.createKDTree(gridX, gridY, gridH);
-    }
+        // The centroids of the grid cells act as points of the KDTree,
+        // the index of a point is the index of its cell
+        double[] centroids = new double[numCells * 2];
+        for (int cell = 0; cell < numCells; cell += 1) {
+            centroids[cell * 2] = this.cells.getCentroidX(cell);
+            centroids[cell * 2 + 1] = this.cells.getCentroidY(cell);
+        }
 
-    public PointAltitudeInterpolator(double[][] gridX, double[][] gridY, double[][] gridH, GridCoordinatesType coordinatesType) throws DataNotInGridFormException {
-        this.coordinatesType = coordinatesType;
-        this.createKDTree(gridX, gridY, gridH);
-    }
+        if (treeCacheDir == null) {
+            this.tree = new KDTree<>(centroids, 2);
+            return;
+        }
 
-    private void createKDTree(double[][] gridX, double[][] gridY, double[][] gridH) throws  DataNotInGridFormException {
-        if (gridX.length != gridY.length ||
-                gridH.length != gridX.length ||
-                gridX[0].length != gridY[0].length ||
-                gridX[0].length != gridH[0].length) {
-            throw new DataNotInGridFormException();
-        }
-
-        int numCells = (gridX.length - 1) * (gridX[0].length - 1);
-
-        // The centroids of the grid cells act as keys for the KDTree
-        double[][] keys = new double[numCells][2];
-        // The actual GridCell acts as the value
-        GridCell[] values = new GridCell[numCells];
-
-        int cellCounter = 0;
-
-        // Calculate the GridCell data-structure from the provided data
-        for (int row = 1; row < gridX.length; row += 1) {
-            for (int col = 1; col < gridX[row].length; col += 1) {
-                GridPoint gridPoint3 = new GridPoint(gridX[row - 1][col - 1], gridY[row - 1][col - 1], gridH[row - 1][col - 1]);
-                GridPoint gridPoint1 = new GridPoint(gridX[row - 1][col], gridY[row - 1][col], gridH[row - 1][col]);
-                GridPoint gridPoint4 = new GridPoint(gridX[row][col - 1], gridY[row][col - 1], gridH[row][col - 1]);
-                GridPoint gridPoint2 = new GridPoint(gridX[row][col], gridY[row][col], gridH[row][col]);
-                GridCell cell  = new GridCell(new GridPoint[]{gridPoint1, gridPoint2, gridPoint3, gridPoint4});
-                keys[cellCounter] = new double[]{ cell.getCentroidX(), cell.getCentroidY() };
-                values[cellCounter] = cell;
-                cellCounter += 1;
+        // Snapshots are named by the hash of the centroids,
+        // so every grid has its own
+        long hash = KDTree.hash(centroids, 2);
+        File snapshot = new File(treeCacheDir, "kdtree-" + Long.toHexString(hash) + ".bin");
+        if (snapshot.exists()) {
+            try {
+                this.tree = KDTree.readSnapshot(snapshot, hash);
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't read the KD-tree snapshot, building the tree", e);
             }
         }
-
-
-        this.tree = new KDTree<>(keys, values);
+        this.tree = new KDTree<>(centroids, 2);
+        try {
+            treeCacheDir.mkdirs();
+            this.tree.writeSnapshot(snapshot, hash);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't save the KD-tree snapshot", e);
+        }
     }
 
+    /**
+     * @return the geoid height at the given
+     * position, or NaN if it is outside
+     * of the grid
+     */
     public double interpolateGeoidHeight(double lat, double lon) {
         double pointX = lon;
         double pointY = lat;
 
         if (this.coordinatesType == GridCoordinatesType.UTM) {
             // Convert lat, lon to UTM
-            UTM utm = new UTM(new WGS84(lat, lon));
-            pointX = utm.getEasting();
-            pointY = utm.getNorthing();
+            pointX = UTM.eastingOf(lat, lon);
+            pointY = UTM.northingOf(lat, lon);
         }
 
-        double[] point = {pointX, pointY};
-        Neighbor<double[], GridCell>[] nearestPoints = this.tree.knn(point, 1);
-        GridCell nearestCell = nearestPoints[0].value;
-        GridPoint[] points = nearestCell.getPoints();
+        if (this.gridIndex != null) {
+            return this.gridIndex.interpolate(pointX, pointY);
+        }
+        if (this.tiledGrid != null) {
+            return this.tiledGrid.interpolate(pointX, pointY);
+        }
 
-        // Apply bilinear interpolation using 4 points
-        double x1 = points[0].getX();
-        double y1 = points[0].getY();
-        double x2 = points[1].getX();
-        double y2 = points[2].getY();
+        // Doesn't allocate, fine at fix rate
+        int nearestCell = this.tree.nearestIndex(pointX, pointY);
+        if (nearestCell < 0) {
+            // Not a finite position
+            return Double.NaN;
+        }
+        // NaN if neither the nearest cell nor
+        // its neighbours contain the point
+        return this.cells.interpolateAround(nearestCell, pointX, pointY);
+    }
 
+    /**
+     * For tiled grids: loads the tiles along the
+     * receiver's way in the background, so they
+     * are ready when it gets there. Cheap if
+     * they are already loaded, does nothing
+     * for grids in memory.
+     *
+     * @param heading degrees clockwise from north
+     * @param speed   meters per second
+     */
+    public void prefetch(double lat, double lon, double heading, double speed) {
+        if (this.tiledGrid == null) {
+            return;
+        }
+        double northPerSecond = speed * Math.cos(Math.toRadians(heading));
+        double eastPerSecond = speed * Math.sin(Math.toRadians(heading));
+        double metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        for (int seconds : PREFETCH_SECONDS) {
+            double aheadLat = lat + northPerSecond * seconds / METERS_PER_DEGREE;
+            double aheadLon = lon + (metersPerDegreeLon > 0 ? eastPerSecond * seconds / metersPerDegreeLon : 0);
+            if (this.coordinatesType == GridCoordinatesType.UTM) {
+                this.tiledGrid.prefetch(UTM.eastingOf(aheadLat, aheadLon), UTM.northingOf(aheadLat, aheadLon));
+            } else {
+                this.tiledGrid.prefetch(aheadLon, aheadLat);
+            }
+            if (speed <= 0) {
+                break;
+            }
+        }
+    }
 
-        double fQ11 = points[0].getH();
-        double fQ12 = points[1].getH();
-        double fQ21 = points[2].getH();
-        double fQ22 = points[3].getH();
+    /**
+     * Interpolates the geoid heights of many points
+     * at once. Large batches are split across
+     * all cores.
+     *
+     * @param heights receives the geoid height of
+     *                each point, NaN for points
+     *                outside of the grid
+     */
+    public void interpolateGeoidHeights(double[] lats, double[] lons, double[] heights) {
+        if (lons.length != lats.length || heights.length != lats.length) {
+            throw new IllegalArgumentException("The arrays of latitudes, longitudes and heights have different sizes.");
+        }
+        if (lats.length <= BATCH_SPLIT_SIZE) {
+            this.interpolateGeoidHeights(lats, lons, heights, 0, lats.length);
+        } else {
+            batchPool.invoke(new BatchTask(lats, lons, heights, 0, lats.length));
+        }
+    }
 
-        double x = pointX;
-        double y = pointY;
+    private void interpolateGeoidHeights(double[] lats, double[] lons, double[] heights, int start, int end) {
+        for (int i = start; i < end; i += 1) {
+            heights[i] = this.interpolateGeoidHeight(lats[i], lons[i]);
+        }
+    }
 
-        double resultingGeoidHeight = ((y2 - y) / (y2 - y1)) * (((x2 - x) / (x2 - x1)) * fQ11 + ((x - x1) / (x2 - x1)) * fQ21)
-                + ((y - y1) / (y2 - y1)) * (((x2 - x) / (x2 - x1)) * fQ12 + ((x - x1) / (x2 - x1)) * fQ22);
-        return resultingGeoidHeight;
+    private class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[] lats;
+        private final double[] lons;
+        private final double[] heights;
+        private final int start;
+        private final int end;
+
+        BatchTask(double[] lats, double[] lons, double[] heights, int start, int end) {
+            this.lats = lats;
+            this.lons = lons;
+            this.heights = heights;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.end - this.start <= BATCH_SPLIT_SIZE) {
+                interpolateGeoidHeights(this.lats, this.lons, this.heights, this.start, this.end);
+                return;
+            }
+            int middle = (this.start + this.end) >>> 1;
+            invokeAll(new BatchTask(this.lats, this.lons, this.heights, this.start, middle),
+                    new BatchTask(this.lats, this.lons, this.heights, middle, this.end));
+        }
     }
 
 }
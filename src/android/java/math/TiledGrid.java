@@ -0,0 +1,277 @@
+package com.cordovapluginfastcam.math;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Bilinear interpolation in a regular grid which
+ * is read tile by tile from a file, for models
+ * too large to keep in memory. Only the most
+ * recently used tiles are kept, so memory stays
+ * the same whatever the size of the model.
+ * Tiles the receiver is heading to can be
+ * loaded in the background with prefetch.
+ *
+ * The file is written by convert_geoid_grids.js --tiled:
+ *
+ * magic "FCGTILE1" | nx, ny, tileSize, tilesX, tilesY, reserved (int32)
+ * | x0, y0, dx, dy, heightOffset, heightScale (float64)
+ * | tileOffsets[tilesY][tilesX] (int64) | tiles
+ *
+ * All little-endian. A tile holds the heights of the
+ * (tileSize + 1)^2 nodes around its cells as int16,
+ * so each cell lies within one tile. Offset 0 means
+ * the tile has no data, as does a height of NO_DATA.
+ *
+ * The file is read through a RandomAccessFile rather than
+ * a FileChannel: a thread interrupted during a channel read
+ * closes the channel for every other reader of the grid.
+ */
+public class TiledGrid implements Closeable {
+    private static final String TAG = "TiledGrid";
+    private static final byte[] MAGIC = "FCGTILE1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_LENGTH = 80;
+    private static final short NO_DATA = Short.MIN_VALUE;
+    public static final int DEFAULT_CACHE_TILES = 16;
+    private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TiledGridPrefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Guarded by itself, seek and
+     * read must happen together
+     */
+    private final RandomAccessFile file;
+    /**
+     * Start of the grid in the file,
+     * e.g. within the APK
+     */
+    private final long baseOffset;
+    private final int nx;
+    private final int ny;
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+    private final double x0;
+    private final double y0;
+    private final double dx;
+    private final double dy;
+    private final double heightOffset;
+    private final double heightScale;
+    private final long[] tileOffsets;
+
+    /**
+     * Least recently used first,
+     * guarded by itself
+     */
+    private final LinkedHashMap<Integer, short[]> tiles;
+    /**
+     * Tiles queued for prefetching,
+     * guarded by tiles
+     */
+    private final Set<Integer> prefetching = new HashSet<>();
+
+    private TiledGrid(RandomAccessFile file, long baseOffset, ByteBuffer header, int cacheTiles) {
+        this.file = file;
+        this.baseOffset = baseOffset;
+        this.nx = header.getInt();
+        this.ny = header.getInt();
+        this.tileSize = header.getInt();
+        this.tilesX = header.getInt();
+        this.tilesY = header.getInt();
+        header.getInt();
+        this.x0 = header.getDouble();
+        this.y0 = header.getDouble();
+        this.dx = header.getDouble();
+        this.dy = header.getDouble();
+        this.heightOffset = header.getDouble();
+        this.heightScale = header.getDouble();
+        this.tileOffsets = new long[this.tilesX * this.tilesY];
+        this.tiles = new LinkedHashMap<Integer, short[]>(cacheTiles * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, short[]> eldest) {
+                return this.size() > cacheTiles;
+            }
+        };
+    }
+
+    public static TiledGrid open(RandomAccessFile file, long baseOffset) throws IOException {
+        return open(file, baseOffset, DEFAULT_CACHE_TILES);
+    }
+
+    /**
+     * Reads the header and the tile index.
+     * The file is closed with the grid.
+     *
+     * @param cacheTiles number of tiles kept in memory
+     */
+    public static TiledGrid open(RandomAccessFile file, long baseOffset, int cacheTiles) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(readFully(file, HEADER_LENGTH, baseOffset)).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a tiled geoid grid file");
+        }
+        TiledGrid grid = new TiledGrid(file, baseOffset, header, cacheTiles);
+        if (grid.nx < 2 || grid.ny < 2 || grid.tileSize < 1 || !(grid.dx > 0) || !(grid.dy > 0)
+                || grid.tilesX != (grid.nx - 2) / grid.tileSize + 1
+                || grid.tilesY != (grid.ny - 2) / grid.tileSize + 1) {
+            throw new IOException("Corrupt tiled geoid grid file");
+        }
+
+        ByteBuffer index = ByteBuffer.wrap(readFully(file, grid.tileOffsets.length * 8, baseOffset + HEADER_LENGTH)).order(ByteOrder.LITTLE_ENDIAN);
+        index.asLongBuffer().get(grid.tileOffsets);
+        return grid;
+    }
+
+    /**
+     * @return the interpolated height, or NaN if the
+     * point is outside of the grid, has no data or
+     * its tile couldn't be read
+     */
+    public double interpolate(double x, double y) {
+        int i = cell(x, this.x0, this.dx, this.nx);
+        int j = cell(y, this.y0, this.dy, this.ny);
+        if (i < 0 || j < 0) {
+            return Double.NaN;
+        }
+        int ti = i / this.tileSize;
+        int tj = j / this.tileSize;
+        short[] tile;
+        try {
+            tile = this.getTile(tj * this.tilesX + ti);
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't read tile " + ti + ", " + tj, e);
+            return Double.NaN;
+        }
+        if (tile == null) {
+            return Double.NaN;
+        }
+
+        int tileNodes = this.tileSize + 1;
+        int k = (j - tj * this.tileSize) * tileNodes + (i - ti * this.tileSize);
+        short h00 = tile[k];
+        short h10 = tile[k + 1];
+        short h01 = tile[k + tileNodes];
+        short h11 = tile[k + tileNodes + 1];
+        if (h00 == NO_DATA || h10 == NO_DATA || h01 == NO_DATA || h11 == NO_DATA) {
+            return Double.NaN;
+        }
+        double t = (x - this.x0) / this.dx - i;
+        double u = (y - this.y0) / this.dy - j;
+        double h = (1 - t) * (1 - u) * h00 + t * (1 - u) * h10 + (1 - t) * u * h01 + t * u * h11;
+        return this.heightOffset + this.heightScale * h;
+    }
+
+    /**
+     * Loads the tile around the given point in
+     * the background, unless it is already loaded.
+     * Returns right away.
+     */
+    public void prefetch(double x, double y) {
+        int i = cell(x, this.x0, this.dx, this.nx);
+        int j = cell(y, this.y0, this.dy, this.ny);
+        if (i < 0 || j < 0) {
+            return;
+        }
+        int tileIndex = (j / this.tileSize) * this.tilesX + i / this.tileSize;
+        if (this.tileOffsets[tileIndex] == 0) {
+            return;
+        }
+        synchronized (this.tiles) {
+            // containsKey doesn't count as a use
+            if (this.tiles.containsKey(tileIndex) || !this.prefetching.add(tileIndex)) {
+                return;
+            }
+        }
+        prefetcher.execute(() -> {
+            try {
+                this.getTile(tileIndex);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't prefetch tile " + tileIndex, e);
+            } finally {
+                synchronized (this.tiles) {
+                    this.prefetching.remove(tileIndex);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return null if the tile has no data
+     */
+    private short[] getTile(int tileIndex) throws IOException {
+        long offset = this.tileOffsets[tileIndex];
+        if (offset == 0) {
+            return null;
+        }
+        synchronized (this.tiles) {
+            short[] tile = this.tiles.get(tileIndex);
+            if (tile != null) {
+                return tile;
+            }
+        }
+
+        // Read without holding the lock, lookups of
+        // loaded tiles mustn't wait for the disk
+        int tileNodes = this.tileSize + 1;
+        ByteBuffer buffer = ByteBuffer.wrap(readFully(this.file, tileNodes * tileNodes * 2, this.baseOffset + offset)).order(ByteOrder.LITTLE_ENDIAN);
+        short[] tile = new short[tileNodes * tileNodes];
+        buffer.asShortBuffer().get(tile);
+        synchronized (this.tiles) {
+            this.tiles.put(tileIndex, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Index of the cell containing value
+     * along one axis, -1 if outside
+     */
+    private static int cell(double value, double origin, double spacing, int nodes) {
+        double position = (value - origin) / spacing;
+        if (!(position >= 0 && position <= nodes - 1)) {
+            // Also catches NaN
+            return -1;
+        }
+        return Math.min((int) position, nodes - 2);
+    }
+
+    /**
+     * Unlike channel reads, not closed
+     * by interrupts of the reading thread
+     */
+    private static byte[] readFully(RandomAccessFile file, int length, long position) throws IOException {
+        byte[] bytes = new byte[length];
+        try {
+            synchronized (file) {
+                file.seek(position);
+                file.readFully(bytes);
+            }
+        } catch (EOFException e) {
+            throw new EOFException("Tiled geoid grid file is truncated");
+        }
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+}
@@ -38,6 +38,24 @@ interface GpsPosition {
   quality: GpsFixType;
   time: number;
   velocity: number;
+  /**
+   * Index of the receiver the position
+   * came from, see InitGpsParams.receivers.
+   * 0 is the primary receiver.
+   */
+  source: number;
+  /**
+   * The geoid model is still loading.
+   * Until it's ready, altitude is the
+   * receiver's own altitude above the geoid.
+   */
+  geoidPending: boolean;
+  /**
+   * Horizontal accuracy estimate in meters.
+   * Only sent by UBX receivers, missing
+   * (NaN in binary records) otherwise.
+   */
+  hAcc?: number;
 }
 
 /**
@@ -54,6 +72,10 @@ interface ResultingFile {
    * videos, it's the timestamp
    * when the camera finished
    * capturing.
+   * Once a GPS receiver sent a few
+   * fixes, it's based on the receiver's
+   * UTC time, with sub-millisecond
+   * resolution.
    */
   timestamp: number;
   fileType: "VIDEO" | "IMAGE";
@@ -93,6 +115,34 @@ const enum GeoidModel {
   italgeo90 = 1,
 }
 
+const enum GpsProtocol {
+  /**
+   * NMEA 0183 sentences (GGA, RMC, VTG, GLL)
+   */
+  NMEA = 0,
+  /**
+   * Binary u-blox UBX NAV-PVT messages
+   */
+  UBX = 1,
+}
+
+interface GpsReceiverConfig {
+  /**
+   * Index of the USB serial device
+   * and of its port. Default to 0.
+   */
+  device?: number;
+  port?: number;
+  /**
+   * Default to the baudRate
+   * and protocol of initGps
+   */
+  baudRate?: number;
+  protocol?: GpsProtocol;
+}
+
+type GeoidInterpolation = "bilinear" | "bicubic";
+
 interface InitGpsParams {
   baudRate?: number;
   /**
@@ -100,14 +150,187 @@ interface InitGpsParams {
    */
   altitudeDifference?: number;
   geoidModel: GeoidModel;
+  /**
+   * Defaults to NMEA
+   */
+  protocol?: GpsProtocol;
+  /**
+   * Maximum number of deliveries per
+   * second. Fixes arriving in between
+   * are coalesced. Defaults to 0 = every fix.
+   */
+  maxRate?: number;
+  /**
+   * Only send these fields of each
+   * position. Defaults to all fields.
+   */
+  fields?: (keyof GpsPosition)[];
+  /**
+   * Send all fixes since the last
+   * delivery instead of only the
+   * latest one. Only covers the primary
+   * receiver, see receivers.
+   * Defaults to false.
+   */
+  batch?: boolean;
+  /**
+   * Read several receivers at once, e.g. a
+   * rover and a heading receiver (at most 8).
+   * The first one is the primary receiver,
+   * used for photos, videos and batch mode.
+   * Positions of all receivers are passed
+   * to onData, tagged by 'source'; with
+   * maxRate, the latest one of every
+   * receiver is sent. Batches only hold
+   * the primary receiver's positions.
+   * Defaults to the first port of the first device.
+   */
+  receivers?: GpsReceiverConfig[];
+  /**
+   * "bicubic" is smooth across the edges of the
+   * geoid grid cells, but needs 128 bytes per
+   * cell. Defaults to "bilinear".
+   */
+  interpolation?: GeoidInterpolation;
+  /**
+   * The geoid model is loaded in the background,
+   * called once it's ready. Positions before
+   * that have 'geoidPending' set.
+   */
+  onGeoidModelReady?: (result: { geoidModel: GeoidModel; loadTimeMs: number }) => void;
+  /**
+   * Only contains the requested fields
+   * if 'fields' is set
+   */
   onData: (position: GpsPosition) => void;
+  /**
+   * Receives the fixes of one delivery
+   * in batch mode. If not set, onData is
+   * called for each of them.
+   */
+  onBatch?: (positions: GpsPosition[]) => void;
+  /**
+   * "binary" sends positions as packed
+   * little-endian float64 records instead
+   * of JSON, which is much cheaper to
+   * produce and decode for high fix rates.
+   * Defaults to "json".
+   */
+  encoding?: "json" | "binary";
+  /**
+   * Only with the binary encoding: receives
+   * the raw records instead of decoded
+   * position objects. Each record holds the
+   * values of 'fields' in that order.
+   */
+  onBinary?: (records: Float64Array, fields: (keyof GpsPosition)[]) => void;
   onError?: (e: any) => void;
 }
 
+interface ReplayGpsParams extends Omit<InitGpsParams, "baudRate" | "receivers" | "onGeoidModelReady"> {
+  /**
+   * Path or file:// URL of the log.
+   * Either a log recorded by the plugin
+   * or a plain dump of the serial stream.
+   */
+  path: string;
+  /**
+   * Multiple of the recorded timing,
+   * 0 = as fast as possible.
+   * Plain dumps are always replayed
+   * as fast as possible. Defaults to 1.
+   */
+  speed?: number;
+}
+
+interface GpsRecording {
+  /**
+   * Can be passed to replayGps
+   */
+  path: string;
+  bytes: number;
+  /**
+   * Chunks lost because writing
+   * the file fell behind
+   */
+  droppedChunks: number;
+}
+
+/**
+ * Latencies in microseconds.
+ * Percentiles are accurate to 12.5%.
+ */
+interface LatencyStats {
+  count: number;
+  mean?: number;
+  p50?: number;
+  p90?: number;
+  p99?: number;
+  max?: number;
+}
+
+interface GpsLatencyStats {
+  /**
+   * USB chunk arrival until the fix was parsed
+   */
+  parse: LatencyStats;
+  /**
+   * Geoid correction and publishing
+   */
+  correction: LatencyStats;
+  /**
+   * Waiting for the listener's thread
+   */
+  dispatch: LatencyStats;
+  /**
+   * Listener until handed to the bridge,
+   * including rate limiting
+   */
+  bridge: LatencyStats;
+  /**
+   * USB chunk arrival until handed to the bridge
+   */
+  total: LatencyStats;
+}
+
+interface CorrectHeightsParams {
+  /**
+   * (lat, lon, ellipsoidal height) triples.
+   * Non-finite values reject the call.
+   */
+  coordinates: Float64Array | number[];
+  /**
+   * Defaults to the model
+   * configured in initGps
+   */
+  geoidModel?: GeoidModel;
+  /**
+   * Only used with geoidModel
+   */
+  interpolation?: GeoidInterpolation;
+}
+
 interface FastCamera {
+  /**
+   * Decodes a binary position batch
+   */
+  decodePositions(buffer: ArrayBuffer, fields?: (keyof GpsPosition)[]): GpsPosition[];
   startCamera(p: StartCameraParams): Promise<ResultingFile[]>;
   initGps(p: InitGpsParams): void;
   simulateGps(p: InitGpsParams): void;
+  replayGps(p: ReplayGpsParams): void;
+  /**
+   * Records the raw receiver bytes,
+   * resolves with the path of the log
+   */
+  startGpsRecording(p?: { path?: string }): Promise<string>;
+  stopGpsRecording(): Promise<GpsRecording>;
+  getGpsLatencyStats(p?: { reset?: boolean }): Promise<GpsLatencyStats>;
+  /**
+   * Resolves with the corrected heights,
+   * NaN outside of the geoid model
+   */
+  correctHeights(p: CorrectHeightsParams): Promise<Float64Array>;
 }
 
 interface Navigator {
@@ -2,6 +2,28 @@ const exec = require("cordova/exec");
 
 class FastCamera {
   static PLUGIN_NAME = "FastCamera";
+  /**
+   * Order of the values in binary
+   * position records if no fields
+   * were requested
+   */
+  static POSITION_FIELDS = [
+    "altitude",
+    "origAltitude",
+    "interpolatedGeoid",
+    "geoidH",
+    "dir",
+    "fixed",
+    "lat",
+    "lon",
+    "quality",
+    "time",
+    "velocity",
+    "source",
+    "geoidPending",
+    "hAcc",
+  ];
+  static IS_LITTLE_ENDIAN = new Uint8Array(new Uint16Array([1]).buffer)[0] === 1;
 
   static startCamera({ mode = "SINGLE_PHOTO", clockSyncTimestamp = 0 } = {}) {
     return new Promise((resolve, reject) => {
@@ -22,35 +44,236 @@ class FastCamera {
     baudRate = 0,
     altitudeDifference = 0,
     onData = () => {},
+    onBatch,
     onError = () => {},
     geoidModel = 0,
+    protocol = 0,
+    maxRate = 0,
+    fields = [],
+    batch = false,
+    encoding = "json",
+    onBinary,
+    receivers = [],
+    onGeoidModelReady,
+    interpolation = "bilinear",
   } = {}) {
     exec(
-      (res) => {
-        onData(res);
-      },
+      FastCamera.positionHandler({ onData, onBatch, onBinary, fields }),
       onError,
       FastCamera.PLUGIN_NAME,
       "initGps",
-      [baudRate, altitudeDifference || 0, geoidModel]
+      [
+        baudRate,
+        altitudeDifference || 0,
+        geoidModel,
+        protocol,
+        { maxRate, fields, batch, encoding, receivers, interpolation },
+      ]
     );
+    if (onGeoidModelReady) {
+      exec(
+        onGeoidModelReady,
+        onError,
+        FastCamera.PLUGIN_NAME,
+        "onGeoidModelReady",
+        []
+      );
+    }
   }
 
   static simulateGps({
     altitudeDifference = 0,
     onData = () => {},
+    onBatch,
     onError = () => {},
+    maxRate = 0,
+    fields = [],
+    batch = false,
+    encoding = "json",
+    onBinary,
+    interpolation = "bilinear",
   } = {}) {
     exec(
-      (res) => {
-        onData(res);
-      },
+      FastCamera.positionHandler({ onData, onBatch, onBinary, fields }),
       onError,
       FastCamera.PLUGIN_NAME,
       "simulateGps",
-      [altitudeDifference]
+      [altitudeDifference, { maxRate, fields, batch, encoding, interpolation }]
+    );
+  }
+
+  /**
+   * Feeds a recorded receiver log through
+   * the normal parsing path. speed is a
+   * multiple of the recorded timing,
+   * 0 replays as fast as possible.
+   */
+  static replayGps({
+    path,
+    speed = 1,
+    altitudeDifference = 0,
+    geoidModel = 0,
+    protocol = 0,
+    onData = () => {},
+    onBatch,
+    onError = () => {},
+    maxRate = 0,
+    fields = [],
+    batch = false,
+    encoding = "json",
+    onBinary,
+    interpolation = "bilinear",
+  } = {}) {
+    exec(
+      FastCamera.positionHandler({ onData, onBatch, onBinary, fields }),
+      onError,
+      FastCamera.PLUGIN_NAME,
+      "replayGps",
+      [
+        path,
+        speed,
+        altitudeDifference || 0,
+        geoidModel,
+        protocol,
+        { maxRate, fields, batch, encoding, interpolation },
+      ]
     );
   }
+
+  /**
+   * Latency of each stage between the USB
+   * chunk arriving and the position being
+   * sent to JS, in microseconds.
+   * reset = true starts a new measurement.
+   */
+  static getGpsLatencyStats({ reset = false } = {}) {
+    return new Promise((resolve, reject) => {
+      exec(resolve, reject, FastCamera.PLUGIN_NAME, "getGpsLatencyStats", [
+        reset,
+      ]);
+    });
+  }
+
+  /**
+   * Records every byte the receiver sends,
+   * resolves with the path of the log.
+   * Without a path, the log is written
+   * to the app's files directory.
+   */
+  static startGpsRecording({ path = "" } = {}) {
+    return new Promise((resolve, reject) => {
+      exec(resolve, reject, FastCamera.PLUGIN_NAME, "startGpsRecording", [
+        path,
+      ]);
+    });
+  }
+
+  static stopGpsRecording() {
+    return new Promise((resolve, reject) => {
+      exec(resolve, reject, FastCamera.PLUGIN_NAME, "stopGpsRecording", []);
+    });
+  }
+
+  /**
+   * Corrects the ellipsoidal heights of many
+   * points with a geoid model. coordinates holds
+   * (lat, lon, height) triples, resolves with a
+   * Float64Array of the corrected heights, NaN
+   * for points outside of the model. Without
+   * geoidModel, the model configured in initGps
+   * is used, otherwise geoidModel with the
+   * given interpolation.
+   */
+  static correctHeights({ coordinates, geoidModel = -1, interpolation = "bilinear" }) {
+    const values = Float64Array.from(coordinates);
+    let buffer = values.buffer;
+    if (!FastCamera.IS_LITTLE_ENDIAN) {
+      buffer = new ArrayBuffer(values.length * 8);
+      const view = new DataView(buffer);
+      values.forEach((value, i) => view.setFloat64(i * 8, value, true));
+    }
+    return new Promise((resolve, reject) => {
+      exec(
+        (res) => resolve(FastCamera.toFloat64Array(res)),
+        reject,
+        FastCamera.PLUGIN_NAME,
+        "correctHeights",
+        [buffer, geoidModel, { interpolation }]
+      );
+    });
+  }
+
+  /**
+   * In batch mode, the plugin sends
+   * arrays of positions. They're passed
+   * to onBatch, or to onData one by one
+   * if there is no onBatch.
+   */
+  static positionHandler({ onData, onBatch, onBinary, fields }) {
+    const recordFields = fields.length > 0 ? fields : FastCamera.POSITION_FIELDS;
+    return (res) => {
+      if (res instanceof ArrayBuffer) {
+        if (onBinary) {
+          onBinary(FastCamera.toFloat64Array(res), recordFields);
+          return;
+        }
+        res = FastCamera.decodePositions(res, recordFields);
+        if (res.length === 1 && !onBatch) {
+          onData(res[0]);
+          return;
+        }
+      }
+      if (!Array.isArray(res)) {
+        onData(res);
+      } else if (onBatch) {
+        onBatch(res);
+      } else {
+        res.forEach((position) => onData(position));
+      }
+    };
+  }
+
+  /**
+   * Views the little-endian float64
+   * values of a binary position batch.
+   * Only copies if the platform is
+   * big-endian.
+   */
+  static toFloat64Array(buffer) {
+    if (FastCamera.IS_LITTLE_ENDIAN) {
+      return new Float64Array(buffer);
+    }
+    const view = new DataView(buffer);
+    const values = new Float64Array(buffer.byteLength / 8);
+    for (let i = 0; i < values.length; i += 1) {
+      values[i] = view.getFloat64(i * 8, true);
+    }
+    return values;
+  }
+
+  /**
+   * Turns a binary position batch
+   * into position objects
+   */
+  static decodePositions(buffer, fields = FastCamera.POSITION_FIELDS) {
+    const values = FastCamera.toFloat64Array(buffer);
+    const positions = [];
+    for (let offset = 0; offset + fields.length <= values.length; offset += fields.length) {
+      const position = {};
+      for (let i = 0; i < fields.length; i += 1) {
+        position[fields[i]] = values[offset + i];
+      }
+      // Flags are sent as 0 or 1
+      if ("fixed" in position) {
+        position.fixed = position.fixed === 1;
+      }
+      if ("geoidPending" in position) {
+        position.geoidPending = position.geoidPending === 1;
+      }
+      positions.push(position);
+    }
+    return positions;
+  }
 }
 
 navigator.fastCamera = FastCamera;